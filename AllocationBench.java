@@ -0,0 +1,51 @@
+import java.lang.management.ManagementFactory;
+
+/*
+ * This class was made to check how much garbage the evaluator makes per expression. It evaluates
+ * a few already compiled expressions over and over on one thread and uses the JVM's per-thread
+ * allocation counter to print the bytes allocated per evaluation:
+ *   java AllocationBench [iterations]
+ *
+ * "run" is Evaluator.run alone (what a successful evaluation costs), "response" also builds the
+ * response String that is sent to the client.
+ */
+public class AllocationBench {
+    private static final String[] EXPRESSIONS = {
+            "1+2",
+            "2*(3+4)-5/2",
+            "((1.5+2.25)*(3-4.75))^2 % 7",
+            "-(-(-(8)))+ +3*-2",
+            "10/0",
+    };
+
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Evaluator evaluator = Evaluator.forCurrentThread();
+        System.out.printf("%-32s %14s %14s%n", "expression", "run B/op", "response B/op");
+        for (String expression : EXPRESSIONS) {
+            CompiledExpression program = CompiledExpression.compile(expression);
+            long sink = 0;
+            // Warm up so that the JIT has compiled (and escape analysed) the loop
+            for (int i = 0; i < iterations; i++) {
+                sink += evaluator.run(program);
+                sink += evaluator.response(program, evaluator.run(program)).length();
+            }
+
+            long before = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < iterations; i++) {
+                sink += evaluator.run(program);
+            }
+            long runBytes = threads.getCurrentThreadAllocatedBytes() - before;
+
+            before = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < iterations; i++) {
+                sink += evaluator.response(program, evaluator.run(program)).length();
+            }
+            long responseBytes = threads.getCurrentThreadAllocatedBytes() - before;
+
+            System.out.printf("%-32s %14.2f %14.2f%s%n", expression, (double) runBytes / iterations,
+                    (double) responseBytes / iterations, sink == 42 ? " " : "");
+        }
+    }
+}
@@ -0,0 +1,401 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * This class was made to keep the persistent per-user log the project asks for ("User 1:
+ * Calculated 2 + 2") without writing to a file on the request path. Threads that answer requests
+ * only put a record on a lock-free queue; one writer thread ("audit-writer") formats the records
+ * and appends them to the log.
+ *
+ * Every record is one line: <epoch millis> TAB <client> TAB <text>, where text is e.g.
+ * "Joined", "Calculated 2+2 = 4", "Disconnected after 600012ms idle" or "Left after 5321ms".
+ * Tabs, newlines, carriage returns and backslashes inside the client name or the expression are
+ * written as \t, \n, \r and \\ (a binary protocol expression can contain any of them).
+ *
+ * The log is a directory of segments named audit-<number>-<first millis>.log. A segment is closed
+ * once it reaches segmentBytes (or when the server stops), and then gets an index next to it
+ * (<segment>.idx) with its first and last time, every client that appears in it and the offset of
+ * a record every INDEX_EVERY_BYTES, so AuditReader can skip segments and jump close to a start
+ * time without reading the whole history.
+ *
+ * Group commit: the writer takes every record that is waiting, writes them with one write call and
+ * then, depending on fsyncPolicy, forces them to disk:
+ * batch     after every group (nothing that was written is lost on a power failure)
+ * interval  at most every fsyncMillis (the default)
+ * never     left to the operating system
+ *
+ * With mmap, a segment is mapped into memory at its full size and records are copied into the
+ * mapping, so a group is written without a system call. The unused tail of the file is cut off
+ * once the segment is closed and unmapped. Windows refuses that while the mapping is still in memory
+ * (it is only released when garbage collected), so the size is also kept in the index and the next
+ * start cuts off whatever is left. AuditReader stops at the first zero byte in the meantime.
+ *
+ * If the writer falls more than MAX_PENDING records behind, new records are dropped (and counted
+ * in dropped) rather than letting the queue grow without bound.
+ */
+public class AuditLog {
+    private static final int MAX_PENDING = 1_000_000;
+    private static final int INDEX_EVERY_BYTES = 64 * 1024;
+    private static final int GROUP_BYTES = 256 * 1024; // Write a group once it gets this big
+
+    private Path directory;
+    private long segmentBytes;
+    private String fsyncPolicy;
+    private long fsyncNanos;
+    private boolean mmap;
+
+    private ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<>();
+    private AtomicInteger pending = new AtomicInteger();
+    private LongAdder dropped = new LongAdder();
+    private volatile boolean running = true;
+    private volatile boolean writerParked;
+    private Thread writer;
+
+    // The segment being written. Only touched by the writer thread
+    private int segmentNumber;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private Path segmentPath;
+    private long segmentSize;
+    private long firstMillis;
+    private long lastMillis;
+    private Set<String> segmentClients = new HashSet<>();
+    private List<long[]> sparseIndex = new ArrayList<>(); // {millis, offset}
+    private long nextIndexOffset;
+    private long lastFsync = System.nanoTime();
+    private boolean unsynced;
+    private ByteArrayOutputStream group = new ByteArrayOutputStream(GROUP_BYTES);
+    private StringBuilder line = new StringBuilder();
+
+    public AuditLog(Path directory, long segmentBytes, String fsyncPolicy, int fsyncMillis, boolean mmap) throws IOException {
+        if (!List.of("batch", "interval", "never").contains(fsyncPolicy)) {
+            throw new IllegalArgumentException("Unknown --audit-fsync " + fsyncPolicy + " (expected batch, interval or never)");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncNanos = TimeUnit.MILLISECONDS.toNanos(fsyncMillis);
+        this.mmap = mmap;
+        Files.createDirectories(directory);
+        for (Path segment : segments(directory)) {
+            segmentNumber = Math.max(segmentNumber, segmentNumber(segment) + 1);
+            trimLeftover(segment);
+        }
+        writer = new Thread(this::writeLoop, "audit-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close));
+    }
+
+    public void joined(String clientId) {
+        add(new Record(clientId, "Joined", null));
+    }
+
+    public void left(String clientId, long durationMillis) {
+        add(new Record(clientId, "Left after " + durationMillis + "ms", null));
+    }
+
+    // The server disconnected the client for sending nothing for idleMillis
+    public void reaped(String clientId, long idleMillis) {
+        add(new Record(clientId, "Disconnected after " + idleMillis + "ms idle", null));
+    }
+
+    // response is what was sent back ("5,4" or "4,Error: ...")
+    public void calculated(String clientId, String expression, String response) {
+        add(new Record(clientId, expression, response));
+    }
+
+    // For binary protocol requests, which have no response text
+    public void calculated(String clientId, String expression, int errorCode, int errorLoc, double value) {
+        Record record = new Record(clientId, expression, null);
+        record.binary = true;
+        record.errorCode = errorCode;
+        record.errorLoc = errorLoc;
+        record.value = value;
+        add(record);
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    // Writes everything still queued, closes the current segment and stops the writer
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void add(Record record) {
+        if (pending.incrementAndGet() > MAX_PENDING) {
+            pending.decrementAndGet();
+            dropped.increment();
+            return;
+        }
+        queue.add(record);
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (running || !queue.isEmpty()) {
+                Record record;
+                while ((record = queue.poll()) != null) {
+                    pending.decrementAndGet();
+                    append(record);
+                    if (group.size() >= GROUP_BYTES) {
+                        writeGroup();
+                    }
+                }
+                writeGroup();
+                if (unsynced && fsyncPolicy.equals("interval") && System.nanoTime() - lastFsync >= fsyncNanos) {
+                    sync();
+                }
+                writerParked = true;
+                if (queue.isEmpty() && running) {
+                    // Wake up in time for the next interval fsync even if nothing else arrives
+                    LockSupport.parkNanos(this, unsynced ? fsyncNanos : TimeUnit.SECONDS.toNanos(1));
+                }
+                writerParked = false;
+            }
+            closeSegment();
+        } catch (IOException e) {
+            System.err.println("Audit log stopped: " + e.getMessage());
+        }
+    }
+
+    private void append(Record record) throws IOException {
+        long millis = record.millis;
+        if (channel == null || segmentSize + group.size() >= segmentBytes) {
+            writeGroup();
+            closeSegment();
+            openSegment(millis);
+        }
+        line.setLength(0);
+        line.append(millis).append('\t');
+        escape(line, record.clientId);
+        line.append('\t');
+        if (record.binary) {
+            line.append("Calculated ");
+            escape(line, record.text);
+            if (record.errorCode != EquationErrorHandler.OK) {
+                line.append(": Error: ").append(EquationErrorHandler.getMessage(record.errorCode));
+                line.append(" at char ").append(record.errorLoc);
+            } else {
+                line.append(" = ").append(Evaluator.format(record.value));
+            }
+        } else if (record.response == null) {
+            line.append(record.text);
+        } else {
+            line.append("Calculated ");
+            escape(line, record.text);
+            line.append(record.response.startsWith("5,") ? " = " : ": ").append(record.response, 2, record.response.length());
+        }
+        line.append('\n');
+        long offset = segmentSize + group.size();
+        if (offset >= nextIndexOffset) {
+            sparseIndex.add(new long[] { millis, offset });
+            nextIndexOffset = offset + INDEX_EVERY_BYTES;
+        }
+        if (firstMillis == 0) {
+            firstMillis = millis;
+        }
+        lastMillis = Math.max(lastMillis, millis);
+        segmentClients.add(record.clientId);
+        group.write(line.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void escape(StringBuilder line, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\t') {
+                line.append("\\t");
+            } else if (c == '\n') {
+                line.append("\\n");
+            } else if (c == '\r') {
+                line.append("\\r");
+            } else if (c == '\\') {
+                line.append("\\\\");
+            } else {
+                line.append(c);
+            }
+        }
+    }
+
+    // Writes the group of records collected so far with a single write
+    private void writeGroup() throws IOException {
+        if (group.size() == 0) {
+            return;
+        }
+        byte[] bytes = group.toByteArray();
+        group.reset();
+        if (mapped != null) {
+            if (bytes.length > mapped.remaining()) { // One group larger than what's left of the segment
+                remapLarger(bytes.length);
+            }
+            mapped.put(bytes);
+        } else {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        segmentSize += bytes.length;
+        unsynced = true;
+        if (fsyncPolicy.equals("batch")) {
+            sync();
+        }
+    }
+
+    private void sync() throws IOException {
+        if (mapped != null) {
+            mapped.force();
+        } else if (channel != null) {
+            channel.force(false);
+        }
+        unsynced = false;
+        lastFsync = System.nanoTime();
+    }
+
+    private void openSegment(long millis) throws IOException {
+        segmentPath = directory.resolve(String.format("audit-%06d-%d.log", segmentNumber++, millis));
+        channel = FileChannel.open(segmentPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        if (mmap) {
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+        segmentSize = 0;
+        firstMillis = 0;
+        lastMillis = 0;
+        segmentClients.clear();
+        sparseIndex.clear();
+        nextIndexOffset = 0;
+    }
+
+    private void remapLarger(int needed) throws IOException {
+        mapped.force();
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, segmentSize, Math.max(segmentBytes, needed));
+    }
+
+    private void closeSegment() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        sync();
+        boolean wasMapped = mapped != null;
+        mapped = null;
+        channel.close();
+        channel = null;
+        writeIndex();
+        if (wasMapped) {
+            trim(segmentPath, segmentSize);
+        }
+    }
+
+    /*
+     * Cuts the unused tail off a mapped segment. Returns false if the file is still mapped on a
+     * system that doesn't allow that, in which case trimLeftover does it on the next start.
+     */
+    private static boolean trim(Path segment, long size) {
+        try (FileChannel file = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            if (file.size() > size) {
+                file.truncate(size);
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Trims a segment an earlier run couldn't (its last byte is still the zero padding of the mapping)
+    private static void trimLeftover(Path segment) throws IOException {
+        Path indexPath = Paths.get(segment + ".idx");
+        if (!Files.exists(indexPath)) {
+            return;
+        }
+        try (FileChannel file = FileChannel.open(segment, StandardOpenOption.READ)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            if (file.size() == 0 || file.read(last, file.size() - 1) != 1 || last.get(0) != 0) {
+                return;
+            }
+        }
+        long size = new AuditReader.SegmentIndex(indexPath).size;
+        if (size >= 0 && !trim(segment, size)) {
+            System.err.println("Could not trim the audit segment " + segment);
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        Path temporary = Paths.get(segmentPath + ".idx.tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            out.write("first " + firstMillis + "\n");
+            out.write("last " + lastMillis + "\n");
+            out.write("size " + segmentSize + "\n");
+            for (long[] entry : sparseIndex) {
+                out.write("at " + entry[0] + " " + entry[1] + "\n");
+            }
+            for (String client : segmentClients) {
+                StringBuilder escaped = new StringBuilder("client ");
+                escape(escaped, client);
+                out.write(escaped.append('\n').toString());
+            }
+        }
+        // Readers either see no index (and scan the segment) or the complete one
+        Files.move(temporary, Paths.get(segmentPath + ".idx"), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // The segments in the directory, oldest first
+    static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "audit-*.log")) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        segments.sort(Comparator.comparingInt(AuditLog::segmentNumber));
+        return segments;
+    }
+
+    static int segmentNumber(Path segment) {
+        return Integer.parseInt(segment.getFileName().toString().split("-")[1]);
+    }
+
+    static long segmentFirstMillis(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(name.lastIndexOf('-') + 1, name.length() - ".log".length()));
+    }
+
+    private static class Record {
+        long millis = System.currentTimeMillis();
+        String clientId;
+        String text; // The expression for calculations
+        String response; // Only set for calculations
+        // Calculations sent with the binary protocol have these instead of response
+        boolean binary;
+        int errorCode;
+        int errorLoc;
+        double value;
+
+        Record(String clientId, String text, String response) {
+            this.clientId = clientId;
+            this.text = text;
+            this.response = response;
+        }
+    }
+}
@@ -0,0 +1,163 @@
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+/*
+ * This class was made to read the audit log that the server writes (see AuditLog), e.g. everything
+ * alice did in one afternoon:
+ *   java AuditReader --dir=audit-log --client=alice --from=2026-10-17T13:00 --to=2026-10-17T18:00
+ *
+ * --from and --to take a date (2026-10-17), a local date and time (2026-10-17T13:00 or with
+ * seconds) or epoch milliseconds, and both are optional. Lines are printed as
+ *   2026-10-17 13:05:12.345 alice: Calculated 2+2 = 4
+ *
+ * Closed segments have an index (<segment>.idx), so a segment whose time range or list of clients
+ * doesn't match is skipped without being opened, and in the others reading starts at the indexed
+ * record closest before --from. Only the segment still being written (which has no index yet) has
+ * to be read from the start.
+ */
+public class AuditReader {
+    // Records are written in the order they were handed to the writer, which can be slightly out of
+    // time order between threads, so time bounds are widened by this much when skipping
+    private static final long CLOCK_SLACK_MILLIS = 1000;
+    private static final DateTimeFormatter PRINTED = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+    private static long unreadable; // Lines skipped because they aren't a record
+
+    public static void main(String[] args) throws IOException {
+        ServerOptions options = new ServerOptions(args);
+        Path directory = Paths.get(options.getString("dir", "audit-log"));
+        String client = options.getString("client", null);
+        long from = parseTime(options.getString("from", null), 0);
+        long to = parseTime(options.getString("to", null), Long.MAX_VALUE - CLOCK_SLACK_MILLIS);
+
+        List<Path> segments = AuditLog.segments(directory);
+        int skipped = 0;
+        PrintStream out = new PrintStream(new BufferedOutputStream(System.out), false, StandardCharsets.UTF_8);
+        for (int i = 0; i < segments.size(); i++) {
+            Path segment = segments.get(i);
+            if (AuditLog.segmentFirstMillis(segment) > to + CLOCK_SLACK_MILLIS) {
+                skipped += segments.size() - i; // Later segments only start later
+                break;
+            }
+            long start = 0;
+            Path indexPath = Paths.get(segment + ".idx");
+            if (Files.exists(indexPath)) {
+                SegmentIndex index = new SegmentIndex(indexPath);
+                if (index.last < from - CLOCK_SLACK_MILLIS || (client != null && !index.clients.contains(client))) {
+                    skipped++;
+                    continue;
+                }
+                start = index.offsetBefore(from - CLOCK_SLACK_MILLIS);
+            }
+            read(segment, start, client, from, to, out);
+        }
+        out.flush();
+        System.err.println("Read " + (segments.size() - skipped) + " of " + segments.size() + " segments"
+                + (unreadable > 0 ? " (skipped " + unreadable + " unreadable lines)" : ""));
+    }
+
+    private static void read(Path segment, long start, String client, long from, long to, PrintStream out)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+            channel.position(start);
+            BufferedReader in = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8), 64 * 1024);
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty() || line.charAt(0) == '\0') { // The unused tail of a memory-mapped segment
+                    break;
+                }
+                String[] fields = line.split("\t", 3);
+                long millis;
+                try {
+                    millis = fields.length < 3 ? -1 : Long.parseLong(fields[0]);
+                } catch (NumberFormatException e) {
+                    millis = -1;
+                }
+                if (millis < 0) { // Not a record (e.g. the rest of one split by a \r an older server didn't escape)
+                    unreadable++;
+                    continue;
+                }
+                if (millis > to + CLOCK_SLACK_MILLIS) {
+                    break;
+                }
+                String clientId = unescape(fields[1]);
+                if (millis < from || millis > to || (client != null && !client.equals(clientId))) {
+                    continue;
+                }
+                LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+                out.println(PRINTED.format(time) + " " + clientId + ": " + unescape(fields[2]));
+            }
+        }
+    }
+
+    private static long parseTime(String text, long missing) {
+        if (text == null) {
+            return missing;
+        }
+        if (text.chars().allMatch(Character::isDigit)) {
+            return Long.parseLong(text);
+        }
+        LocalDateTime time = text.contains("T") ? LocalDateTime.parse(text) : LocalDate.parse(text).atStartOfDay();
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    // Undoes the \t, \n, \r and \\ escapes of AuditLog
+    static String unescape(String text) {
+        if (text.indexOf('\\') < 0) {
+            return text;
+        }
+        StringBuilder result = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char next = text.charAt(++i);
+                result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    static class SegmentIndex {
+        long first;
+        long last;
+        long size = -1; // Bytes of records in the segment (missing in indexes written before it was added)
+        Set<String> clients = new HashSet<>();
+        List<long[]> offsets = new ArrayList<>(); // {millis, offset}, in file order
+
+        SegmentIndex(Path path) throws IOException {
+            for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+                if (line.startsWith("first ")) {
+                    first = Long.parseLong(line.substring(6));
+                } else if (line.startsWith("last ")) {
+                    last = Long.parseLong(line.substring(5));
+                } else if (line.startsWith("size ")) {
+                    size = Long.parseLong(line.substring(5));
+                } else if (line.startsWith("at ")) {
+                    String[] fields = line.split(" ");
+                    offsets.add(new long[] { Long.parseLong(fields[1]), Long.parseLong(fields[2]) });
+                } else if (line.startsWith("client ")) {
+                    clients.add(unescape(line.substring(7)));
+                }
+            }
+        }
+
+        // Offset of the last indexed record from before millis (the records in between are read and skipped)
+        long offsetBefore(long millis) {
+            long offset = 0;
+            for (long[] entry : offsets) {
+                if (entry[0] >= millis) {
+                    break;
+                }
+                offset = entry[1];
+            }
+            return offset;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * This class was made for callers that are programs rather than people. Instead of text lines,
+ * the "binary" protocol extension sends length-prefixed frames, and answers carry the raw double
+ * (or an error code and location) so the client never has to parse a number back out of text.
+ *
+ * A client asks for it in its name message ("0,alice;binary\n", which has to end with a plain
+ * "\n"). After the usual "0,... has joined the session." and "8,binary" lines, everything in both
+ * directions is a frame:
+ *
+ *   int32 length     Number of bytes after this field
+ *   byte  opcode     One of the opcodes below
+ *   int32 requestId  Picked by the client and echoed in the answer
+ *   ...   payload    Depends on the opcode
+ *
+ * Client to server:
+ *   EVAL    payload is the expression in UTF-8
+ *   QUIT    no payload, the server closes the connection
+ * Server to client:
+ *   RESULT  payload is the value as an 8 byte IEEE-754 double
+ *   ERROR   payload is a 1 byte error code (see EquationErrorHandler, or BAD_REQUEST/SERVER_BUSY)
+ *           followed by an int32 location, the same number as "at char N" in the text protocol
+ *
+ * All numbers are big-endian. Answers can come back in any order, like pipelined requests.
+ */
+public class BinaryCodec {
+    public static final byte EVAL = 1;
+    public static final byte QUIT = 2;
+    public static final byte RESULT = 3;
+    public static final byte ERROR = 4;
+
+    // Error codes that are not about the expression itself
+    public static final int BAD_REQUEST = 100; // Unknown opcode
+    public static final int SERVER_BUSY = 101;
+
+    // Size of the length field and of opcode + requestId
+    public static final int LENGTH_SIZE = 4;
+    public static final int HEADER_SIZE = 1 + 4;
+    // Frames longer than this are treated as a broken client
+    public static final int MAX_FRAME_LENGTH = 1024 * 1024;
+
+    public static class Frame {
+        public byte opcode;
+        public int requestId;
+        public byte[] payload;
+
+        public Frame(byte opcode, int requestId, byte[] payload) {
+            this.opcode = opcode;
+            this.requestId = requestId;
+            this.payload = payload;
+        }
+
+        public double getResult() {
+            return ByteBuffer.wrap(payload).getDouble();
+        }
+
+        public int getErrorCode() {
+            return payload[0] & 0xff;
+        }
+
+        public int getErrorLoc() {
+            return ByteBuffer.wrap(payload, 1, 4).getInt();
+        }
+    }
+
+    public static byte[] encodeEval(int requestId, String expression) {
+        byte[] utf8 = expression.getBytes(StandardCharsets.UTF_8);
+        return header(EVAL, requestId, utf8.length).put(utf8).array();
+    }
+
+    public static byte[] encodeQuit() {
+        return header(QUIT, 0, 0).array();
+    }
+
+    public static byte[] encodeResult(int requestId, double value) {
+        return header(RESULT, requestId, 8).putDouble(value).array();
+    }
+
+    public static byte[] encodeError(int requestId, int errorCode, int location) {
+        return header(ERROR, requestId, 5).put((byte) errorCode).putInt(location).array();
+    }
+
+    private static ByteBuffer header(byte opcode, int requestId, int payloadLength) {
+        ByteBuffer frame = ByteBuffer.allocate(LENGTH_SIZE + HEADER_SIZE + payloadLength);
+        return frame.putInt(HEADER_SIZE + payloadLength).put(opcode).putInt(requestId);
+    }
+
+    // Blocking read of one frame, for clients. Returns null if the server closed the connection
+    public static Frame readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < HEADER_SIZE || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Bad frame length " + length);
+        }
+        byte opcode = in.readByte();
+        int requestId = in.readInt();
+        byte[] payload = new byte[length - HEADER_SIZE];
+        in.readFully(payload);
+        return new Frame(opcode, requestId, payload);
+    }
+
+    /*
+     * Cuts frames out of bytes as they arrive, the binary counterpart of LineDecoder. A frame can
+     * be split across any number of reads.
+     */
+    public static class FrameDecoder {
+        public interface FrameHandler {
+            // Returning false stops the decoder (e.g. because the connection was closed)
+            boolean onFrame(Frame frame);
+        }
+
+        private ByteBuffer header = ByteBuffer.allocate(LENGTH_SIZE + HEADER_SIZE);
+        private byte[] payload; // null while the header is still being read
+        private int payloadRead;
+
+        /*
+         * Consumes every byte remaining in buffer. Returns false if the handler asked to stop or
+         * the client sent a frame that can't be right.
+         */
+        public boolean feed(ByteBuffer buffer, FrameHandler handler) {
+            while (buffer.hasRemaining()) {
+                if (payload == null) {
+                    while (header.hasRemaining() && buffer.hasRemaining()) {
+                        header.put(buffer.get());
+                    }
+                    if (header.hasRemaining()) {
+                        return true;
+                    }
+                    int length = header.getInt(0);
+                    if (length < HEADER_SIZE || length > MAX_FRAME_LENGTH) {
+                        return false;
+                    }
+                    payload = new byte[length - HEADER_SIZE];
+                    payloadRead = 0;
+                }
+                int count = Math.min(payload.length - payloadRead, buffer.remaining());
+                buffer.get(payload, payloadRead, count);
+                payloadRead += count;
+                if (payloadRead == payload.length) {
+                    Frame frame = new Frame(header.get(LENGTH_SIZE), header.getInt(LENGTH_SIZE + 1), payload);
+                    header.clear();
+                    payload = null;
+                    if (!handler.onFrame(frame)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * This class was made to evaluate one formula over millions of rows of inputs, which would be
+ * millions of "14," lines if it went through the server. It is a command line tool that works on
+ * local files:
+ *
+ *   java BulkEvaluator --formula="(a^2+b^2)^0.5" --columns=a:a.bin,b:b.bin --output=hyp.txt
+ *
+ * The formula is written like the body of a "13," definition, and its parameters are the names
+ * given in --columns, in that order. Every column is a file of little-endian IEEE-754 doubles (what
+ * numpy's tofile writes on x86 and ARM), row i of the input being the i-th double of every file.
+ * The files are memory-mapped, so they are never read into the heap and can be bigger than it.
+ *
+ * Instead of running the program once per row, it is run once per CHUNK_ROWS rows: every
+ * instruction works on a whole double[] of values at once (see Chunk), in a plain loop that the
+ * JIT compiler can turn into SIMD instructions. Rows are cut into blocks of BLOCK_ROWS that a
+ * ForkJoinPool evaluates in parallel, and the answers of each block are written out as soon as it
+ * and every block before it are done, so the output streams in row order and only a few blocks
+ * are in memory at a time.
+ *
+ * Every row gets exactly the answer a "14," call with the same arguments gets (see
+ * Evaluator.run). Dividing or taking the modulo by zero is an error of that row alone, at the same
+ * char. The double loops are Evaluator's fast path: a row whose +, -, * or ^ reaches
+ * Evaluator.EXACT_LIMIT is marked and afterwards run through Evaluator.run on its own, so whole
+ * numbers stay exact just like on the server (as does every row of a formula with numbers of 2^53
+ * or more written in it).
+ *
+ * Output (--output, default stdout):
+ * --format=text    One line per row, "5,<num>" or "4,Error: ...", like the server's answers (default)
+ * --format=binary  One little-endian double per row, NaN for a row with an error. Rows with errors
+ *                  are listed on stderr as "<row>,4,Error: ..." (rows count from 0). A whole number
+ *                  over 2^53 is the nearest double, as in a RESULT frame of the binary protocol
+ *
+ * Switches (see ServerOptions):
+ * --formula=<expression>        The formula to evaluate
+ * --columns=<name>:<file>,...   One parameter per column file
+ * --output=<file>               Where the answers go (default stdout)
+ * --format=text|binary          See above
+ * --threads=<n>                 Threads evaluating blocks (default: number of processors)
+ *
+ * Explaination of Variables:
+ *
+ * program: The compiled formula
+ * columns: The mapped column files, in parameter order
+ * rows: How many rows every column has
+ * constantChunks: For every TOK_NUMBER instruction, a chunk filled with its value. They are only
+ * read, so every thread uses the same ones
+ */
+public class BulkEvaluator {
+    static final int CHUNK_ROWS = 1024;
+    static final int BLOCK_ROWS = 64 * CHUNK_ROWS;
+    // Rows per mapping of a column (a mapping can't be over 2 GB). A multiple of BLOCK_ROWS so that
+    // no chunk is split between two mappings
+    private static final int SEGMENT_ROWS = 1 << 27;
+    // Blocks evaluated ahead of the one being written, per thread
+    private static final int BLOCKS_AHEAD = 4;
+
+    private CompiledExpression program;
+    private Column[] columns;
+    private long rows;
+    private boolean binary;
+    private double[][] constantChunks;
+
+    public static void main(String[] args) throws IOException {
+        ServerOptions options = new ServerOptions(args);
+        String formula = options.getString("formula", null);
+        String columnList = options.getString("columns", null);
+        if (formula == null || columnList == null) {
+            throw new IllegalArgumentException("Usage: java BulkEvaluator --formula=<expression> "
+                    + "--columns=<name>:<file>,... [--output=<file>] [--format=text|binary] [--threads=<n>]");
+        }
+        String format = options.getString("format", "text");
+        if (!format.equals("text") && !format.equals("binary")) {
+            throw new IllegalArgumentException("Unknown --format " + format + " (expected text or binary)");
+        }
+        int threads = Math.max(1, options.getInt("threads", Runtime.getRuntime().availableProcessors()));
+
+        String[] specs = columnList.split(",");
+        String[] names = new String[specs.length];
+        Column[] columns = new Column[specs.length];
+        for (int i = 0; i < specs.length; i++) {
+            int colon = specs[i].indexOf(':');
+            if (colon < 1) {
+                throw new IllegalArgumentException("--columns expects <name>:<file> but was given " + specs[i]);
+            }
+            names[i] = specs[i].substring(0, colon).trim();
+            if (Arrays.asList(names).subList(0, i).contains(names[i])) {
+                throw new IllegalArgumentException("Column " + names[i] + " is given twice");
+            }
+            columns[i] = Column.map(specs[i].substring(colon + 1));
+            if (columns[i].rows != columns[0].rows) {
+                throw new IllegalArgumentException("Column " + names[i] + " has " + columns[i].rows
+                        + " rows but " + names[0] + " has " + columns[0].rows);
+            }
+        }
+        CompiledExpression program = CompiledExpression.compileFormula(formula, names);
+        if (program.getError() != null) {
+            // Same message "13," would answer, the char counting from the start of the formula
+            System.err.println(program.getError());
+            System.exit(1);
+        }
+
+        String output = options.getString("output", null);
+        BulkEvaluator bulk = new BulkEvaluator(program, columns, format.equals("binary"));
+        long start = System.nanoTime();
+        long[] counts;
+        try (OutputStream out = output == null ? new FileOutputStream(FileDescriptor.out)
+                : new FileOutputStream(output)) {
+            counts = bulk.run(new BufferedOutputStream(out, 1 << 16), new ForkJoinPool(threads), threads * BLOCKS_AHEAD);
+        }
+        long millis = Math.max(1, (System.nanoTime() - start) / 1000000);
+        System.err.println("Evaluated " + bulk.rows + " rows in " + millis + " ms (" + bulk.rows * 1000 / millis
+                + " rows/s, " + counts[0] + " errors, " + counts[1] + " calculated exactly)");
+    }
+
+    public BulkEvaluator(CompiledExpression program, Column[] columns, boolean binary) {
+        this.program = program;
+        this.columns = columns;
+        this.binary = binary;
+        rows = columns.length == 0 ? 0 : columns[0].rows;
+        constantChunks = new double[program.length][];
+        for (int i = 0; i < program.length; i++) {
+            if (program.ops[i] == EquationLexer.Token.TOK_NUMBER) {
+                constantChunks[i] = new double[CHUNK_ROWS];
+                Arrays.fill(constantChunks[i], program.constants[i]);
+            }
+        }
+    }
+
+    /*
+     * Evaluates every row and writes the answers to out in row order, with at most ahead blocks
+     * being evaluated (or waiting to be written) at a time. Returns the number of rows with an
+     * error and the number that had to be calculated exactly.
+     */
+    public long[] run(OutputStream out, ForkJoinPool pool, int ahead) throws IOException {
+        long[] counts = new long[2];
+        ArrayDeque<ForkJoinTask<Block>> pending = new ArrayDeque<>();
+        long next = 0; // First row of the next block to hand to the pool
+        while (next < rows || !pending.isEmpty()) {
+            while (next < rows && pending.size() < ahead) {
+                pending.add(pool.submit(new Block(next, Math.min(rows, next + BLOCK_ROWS))));
+                next += BLOCK_ROWS;
+            }
+            Block done = pending.poll().join();
+            out.write(done.output);
+            if (done.errorLines != null) {
+                System.err.print(done.errorLines);
+            }
+            counts[0] += done.errors;
+            counts[1] += done.exact;
+        }
+        out.flush();
+        return counts;
+    }
+
+    /*
+     * The rows from start to end, evaluated on a pool thread one chunk at a time. output is what
+     * is written for them.
+     */
+    class Block extends RecursiveTask<Block> {
+        private static final long serialVersionUID = 1L;
+        private long start;
+        private long end;
+        byte[] output;
+        String errorLines; // Binary format only, null if there were no errors
+        int errors;
+        int exact;
+
+        Block(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        protected Block compute() {
+            Chunk chunk = new Chunk(program.maxDepth);
+            StringBuilder text = binary ? null : new StringBuilder((int) (end - start) * 8);
+            ByteBuffer doubles = binary ? ByteBuffer.allocate((int) (end - start) * 8).order(ByteOrder.LITTLE_ENDIAN) : null;
+            StringBuilder errorText = null;
+            String separator = System.lineSeparator();
+            for (long row = start; row < end; row += CHUNK_ROWS) {
+                int count = (int) Math.min(CHUNK_ROWS, end - row);
+                double[] values = chunk.run(row, count);
+                for (int i = 0; i < count; i++) {
+                    int status = chunk.status[i];
+                    String answer = null; // Only made when the double in values isn't the answer
+                    double value = values[i];
+                    if (status == Evaluator.NEEDS_EXACT) {
+                        Evaluator evaluator = Evaluator.forCurrentThread();
+                        status = evaluator.run(program, arguments(row + i));
+                        value = evaluator.getResult();
+                        answer = evaluator.response(program, status);
+                        exact++;
+                    } else if (status != EquationErrorHandler.OK) {
+                        answer = EquationErrorHandler.createErrMsg(status, chunk.errorLoc[i], program.errorChar);
+                    }
+                    if (status != EquationErrorHandler.OK) {
+                        errors++;
+                    }
+                    if (!binary) {
+                        text.append(answer != null ? answer : "5," + Evaluator.format(value)).append(separator);
+                    } else if (status == EquationErrorHandler.OK) {
+                        doubles.putDouble(value);
+                    } else {
+                        doubles.putDouble(Double.NaN);
+                        if (errorText == null) {
+                            errorText = new StringBuilder();
+                        }
+                        errorText.append(row + i).append(',').append(answer).append(separator);
+                    }
+                }
+            }
+            output = binary ? doubles.array() : text.toString().getBytes();
+            errorLines = errorText == null ? null : errorText.toString();
+            return this;
+        }
+    }
+
+    // The arguments of one row, for running it on its own
+    private double[] arguments(long row) {
+        double[] arguments = new double[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            arguments[i] = columns[i].get(row);
+        }
+        return arguments;
+    }
+
+    /*
+     * Runs the program over up to CHUNK_ROWS rows at once. It is Evaluator.interpret with a chunk
+     * of values in every place of the stack instead of one value, and with the checks that end
+     * interpret early turned into a status per row. A row's status is set by the first
+     * instruction that fails for it and then kept, so it is what interpret would have returned
+     * for that row. One per Block, as it isn't thread-safe.
+     *
+     * Explaination of Variables:
+     *
+     * stack: The chunk in every place of the stack. A place holds one of scratch, a chunk of
+     * constantChunks or nothing
+     * scratch: A chunk owned by each place of the stack, which operators write their results to
+     * status: For every row, EquationErrorHandler.OK, the error it ran into (with its location in
+     * errorLoc) or Evaluator.NEEDS_EXACT
+     */
+    class Chunk {
+        private double[][] stack;
+        private double[][] scratch;
+        int[] status = new int[CHUNK_ROWS];
+        int[] errorLoc = new int[CHUNK_ROWS];
+
+        Chunk(int maxDepth) {
+            stack = new double[maxDepth][];
+            scratch = new double[maxDepth][CHUNK_ROWS];
+        }
+
+        // Returns the values of rows first to first + count - 1 (only valid where status is OK)
+        double[] run(long first, int count) {
+            Arrays.fill(status, 0, count, program.exactConstants == null ? EquationErrorHandler.OK : Evaluator.NEEDS_EXACT);
+            EquationLexer.Token[] ops = program.ops;
+            int top = 0;
+            for (int i = 0; i < program.length; i++) {
+                switch (ops[i]) {
+                    case TOK_NUMBER:
+                        stack[top++] = constantChunks[i];
+                        break;
+                    case TOK_IDENT: // A parameter, its index is in constants
+                        columns[(int) program.constants[i]].get(first, scratch[top], count);
+                        stack[top] = scratch[top];
+                        top++;
+                        break;
+                    case TOK_POSITIVE:
+                    case TOK_NEGATIVE:
+                        unary(ops[i], stack[top - 1], scratch[top - 1], count);
+                        stack[top - 1] = scratch[top - 1];
+                        break;
+                    default:
+                        top--;
+                        binary(ops[i], stack[top - 1], stack[top], scratch[top - 1], count, program.locations[i]);
+                        stack[top - 1] = scratch[top - 1];
+                        break;
+                }
+            }
+            if (program.errorCode != EquationErrorHandler.OK) { // main rejects these, but like interpret
+                for (int i = 0; i < count; i++) {
+                    if (status[i] == EquationErrorHandler.OK) {
+                        status[i] = program.errorCode;
+                        errorLoc[i] = program.errorLoc;
+                    }
+                }
+            }
+            return stack[0];
+        }
+
+        private void unary(EquationLexer.Token op, double[] value, double[] result, int count) {
+            if (op == EquationLexer.Token.TOK_NEGATIVE) {
+                for (int i = 0; i < count; i++) {
+                    result[i] = -1 * value[i];
+                }
+            } else {
+                for (int i = 0; i < count; i++) {
+                    result[i] = Math.abs(value[i]);
+                }
+            }
+        }
+
+        /*
+         * One loop per operator so that each is as simple as the JIT needs to vectorize it. The
+         * checks come in a second loop over the results (or the divisors), which only writes
+         * anything for the rare row that fails one.
+         */
+        private void binary(EquationLexer.Token op, double[] lhs, double[] rhs, double[] result, int count, int location) {
+            switch (op) {
+                case TOK_ADD:
+                    for (int i = 0; i < count; i++) {
+                        result[i] = lhs[i] + rhs[i];
+                    }
+                    checkExact(result, count);
+                    break;
+                case TOK_SUB:
+                    for (int i = 0; i < count; i++) {
+                        result[i] = lhs[i] - rhs[i];
+                    }
+                    checkExact(result, count);
+                    break;
+                case TOK_MUL:
+                    for (int i = 0; i < count; i++) {
+                        result[i] = lhs[i] * rhs[i];
+                    }
+                    checkExact(result, count);
+                    break;
+                case TOK_DIV:
+                    checkDivisors(rhs, count, EquationErrorHandler.DIVIDE_BY_ZERO, location);
+                    for (int i = 0; i < count; i++) {
+                        result[i] = lhs[i] / rhs[i];
+                    }
+                    break;
+                case TOK_MOD:
+                    checkDivisors(rhs, count, EquationErrorHandler.MODULO_BY_ZERO, location);
+                    for (int i = 0; i < count; i++) {
+                        result[i] = lhs[i] % rhs[i];
+                    }
+                    break;
+                default: // TOK_EXP
+                    for (int i = 0; i < count; i++) {
+                        result[i] = Math.pow(lhs[i], rhs[i]);
+                    }
+                    checkExact(result, count);
+                    break;
+            }
+        }
+
+        // Rows whose value got too big for doubles to be exact are run again with runExact
+        private void checkExact(double[] values, int count) {
+            for (int i = 0; i < count; i++) {
+                if (Evaluator.needsExact(values[i]) && status[i] == EquationErrorHandler.OK) {
+                    status[i] = Evaluator.NEEDS_EXACT;
+                }
+            }
+        }
+
+        private void checkDivisors(double[] divisors, int count, int error, int location) {
+            for (int i = 0; i < count; i++) {
+                if (divisors[i] == 0 && status[i] == EquationErrorHandler.OK) {
+                    status[i] = error;
+                    errorLoc[i] = location;
+                }
+            }
+        }
+    }
+
+    /*
+     * A column file, mapped in segments of SEGMENT_ROWS doubles. The buffers are only read with
+     * absolute gets, which don't change them, so every thread can use them at once.
+     */
+    static class Column {
+        private DoubleBuffer[] segments;
+        long rows;
+
+        static Column map(String file) throws IOException {
+            Column column = new Column();
+            try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size % 8 != 0) {
+                    throw new IOException(file + " is " + size + " bytes, which is not a whole number of doubles");
+                }
+                column.rows = size / 8;
+                column.segments = new DoubleBuffer[(int) ((column.rows + SEGMENT_ROWS - 1) / SEGMENT_ROWS)];
+                for (int i = 0; i < column.segments.length; i++) {
+                    long offset = (long) i * SEGMENT_ROWS * 8;
+                    column.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(size - offset, (long) SEGMENT_ROWS * 8))
+                            .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+                }
+            } // The mappings stay valid after the channel is closed
+            return column;
+        }
+
+        // Copies count values starting at row into chunk (never across two segments, see SEGMENT_ROWS)
+        void get(long row, double[] chunk, int count) {
+            segments[(int) (row / SEGMENT_ROWS)].get((int) (row % SEGMENT_ROWS), chunk, 0, count);
+        }
+
+        double get(long row) {
+            return segments[(int) (row / SEGMENT_ROWS)].get((int) (row % SEGMENT_ROWS));
+        }
+    }
+}
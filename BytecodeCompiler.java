@@ -0,0 +1,312 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * This class was made to run the hottest expressions without Evaluator's switch over every
+ * instruction. It turns a CompiledExpression into a small class of its own whose run method is the
+ * post-fix program written out as JVM instructions (numbers become ldc2_w, "+" becomes dadd, and so
+ * on), so the JIT sees straight-line code with nothing to dispatch on. The class is defined as a
+ * hidden class (MethodHandles.Lookup.defineHiddenClass), which the JVM unloads again once the
+ * CompiledExpression is dropped from the cache.
+ *
+ * Evaluator decides when to do this (see Evaluator.setTierThreshold): every CompiledExpression
+ * counts how often it ran, and the one run that reaches the threshold generates the class.
+ *
+ * Like Evaluator's interpret, the code works on doubles only: after every +, -, * and ^ it checks
+ * the value with Evaluator.needsExact and if it has reached Evaluator.EXACT_LIMIT returns
+ * Evaluator.NEEDS_EXACT, so that Evaluator runs the program again with exact whole numbers.
+ *
+ * Errors stay exactly the same as in Evaluator: before a "/" or "%" the divisor is checked and a
+ * zero returns DIVIDE_BY_ZERO or MODULO_BY_ZERO with the operator's location, and a program that
+ * ends in a compile error runs every instruction before it and then returns that error.
+ *
+ * The class file is written by hand (there is no class file API in Java 21). It uses class file
+ * version 49, the last one the JVM verifies without StackMapTable frames, which keeps the writer
+ * down to a constant pool and two methods.
+ */
+public class BytecodeCompiler {
+    // Longer programs stay interpreted, so the generated method stays far below the 64 KB limit
+    static final int MAX_INSTRUCTIONS = 2000;
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    // Opcodes used below
+    private static final int ICONST_M1 = 0x02, ICONST_0 = 0x03, DCONST_0 = 0x0e, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13,
+            LDC2_W = 0x14, ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, ALOAD_2 = 0x2c, DALOAD = 0x31, DUP2 = 0x5c,
+            DADD = 0x63, DSUB = 0x67, DMUL = 0x6b, DDIV = 0x6f, DREM = 0x73, DNEG = 0x77, DCMPL = 0x97,
+            IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IRETURN = 0xac, RETURN = 0xb1, INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7,
+            INVOKESTATIC = 0xb8;
+
+    /*
+     * Returns the generated form of program, or null if it can't be generated (too long). This is
+     * thread-safe as every call writes a class of its own.
+     */
+    public static GeneratedExpression generate(CompiledExpression program) {
+        if (program.length > MAX_INSTRUCTIONS) {
+            return null;
+        }
+        try {
+            byte[] classFile = new ClassWriter(program).write();
+            MethodHandles.Lookup generated = LOOKUP.defineHiddenClass(classFile, true);
+            return (GeneratedExpression) generated.lookupClass().getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | IOException | LinkageError e) {
+            System.err.println("Could not generate code for " + program.getExpression() + ": " + e);
+            return null;
+        }
+    }
+
+    private static class ClassWriter {
+        private CompiledExpression program;
+        private ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+        private DataOutputStream pool = new DataOutputStream(poolBytes);
+        private Map<Object, Integer> poolIndexes = new HashMap<>();
+        private int poolCount = 1; // Constant pool indexes start at 1
+
+        ClassWriter(CompiledExpression program) {
+            this.program = program;
+        }
+
+        byte[] write() throws IOException {
+            int thisClass = classRef("GeneratedExpression$Impl");
+            int superClass = classRef("java/lang/Object");
+            int interfaceClass = classRef("GeneratedExpression");
+            int code = utf8("Code");
+            byte[] constructor = constructorCode(methodRef("java/lang/Object", "<init>", "()V"));
+            byte[] run = runCode();
+
+            ByteArrayOutputStream classBytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(classBytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0); // Minor version
+            out.writeShort(49); // Major version (Java 5)
+            // The methods add to the pool, so it's only complete now
+            int initName = utf8("<init>");
+            int initType = utf8("()V");
+            int runName = utf8("run");
+            int runType = utf8("(LEvaluator;[D)I");
+            out.writeShort(poolCount);
+            out.write(poolBytes.toByteArray());
+            out.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(interfaceClass);
+            out.writeShort(0); // No fields
+            out.writeShort(2);
+            writeMethod(out, initName, initType, code, 1, 1, constructor);
+            writeMethod(out, runName, runType, code, 2 * program.maxDepth + 8, 3, run);
+            out.writeShort(0); // No class attributes
+            return classBytes.toByteArray();
+        }
+
+        private void writeMethod(DataOutputStream out, int name, int type, int codeName, int maxStack, int maxLocals,
+                byte[] code) throws IOException {
+            out.writeShort(0x0001); // public
+            out.writeShort(name);
+            out.writeShort(type);
+            out.writeShort(1); // One attribute: Code
+            out.writeShort(codeName);
+            out.writeInt(12 + code.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(code.length);
+            out.write(code);
+            out.writeShort(0); // No exception table
+            out.writeShort(0); // No code attributes
+        }
+
+        private byte[] constructorCode(int objectInit) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream code = new DataOutputStream(bytes);
+            code.writeByte(ALOAD_0);
+            code.writeByte(INVOKESPECIAL);
+            code.writeShort(objectInit);
+            code.writeByte(RETURN);
+            return bytes.toByteArray();
+        }
+
+        /*
+         * run(evaluator, arguments): the evaluator is pushed first so that it is right below the
+         * result when setResult is called at the end. In between, the JVM operand stack is the
+         * number stack of Evaluator.
+         */
+        private byte[] runCode() throws IOException {
+            int setResult = methodRef("Evaluator", "setResult", "(D)V");
+            int setErrorLoc = methodRef("Evaluator", "setErrorLoc", "(I)V");
+            int pow = methodRef("java/lang/Math", "pow", "(DD)D");
+            int abs = methodRef("java/lang/Math", "abs", "(D)D");
+            int needsExact = methodRef("Evaluator", "needsExact", "(D)Z");
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream code = new DataOutputStream(bytes);
+            code.writeByte(ALOAD_1);
+            for (int i = 0; i < program.length; i++) {
+                switch (program.ops[i]) {
+                    case TOK_NUMBER:
+                        code.writeByte(LDC2_W);
+                        code.writeShort(doubleConstant(program.constants[i]));
+                        break;
+                    case TOK_IDENT:
+                        code.writeByte(ALOAD_2);
+                        pushInt(code, (int) program.constants[i]);
+                        code.writeByte(DALOAD);
+                        break;
+                    case TOK_ADD:
+                        code.writeByte(DADD);
+                        checkExact(code, needsExact);
+                        break;
+                    case TOK_SUB:
+                        code.writeByte(DSUB);
+                        checkExact(code, needsExact);
+                        break;
+                    case TOK_MUL:
+                        code.writeByte(DMUL);
+                        checkExact(code, needsExact);
+                        break;
+                    case TOK_DIV:
+                        checkDivisor(code, setErrorLoc, EquationErrorHandler.DIVIDE_BY_ZERO, program.locations[i]);
+                        code.writeByte(DDIV);
+                        break;
+                    case TOK_MOD:
+                        checkDivisor(code, setErrorLoc, EquationErrorHandler.MODULO_BY_ZERO, program.locations[i]);
+                        code.writeByte(DREM);
+                        break;
+                    case TOK_EXP:
+                        code.writeByte(INVOKESTATIC);
+                        code.writeShort(pow);
+                        checkExact(code, needsExact);
+                        break;
+                    case TOK_POSITIVE:
+                        code.writeByte(INVOKESTATIC);
+                        code.writeShort(abs);
+                        break;
+                    case TOK_NEGATIVE:
+                        code.writeByte(DNEG); // Same value as Evaluator's -1 * x, including for 0 and NaN
+                        break;
+                    default:
+                        break;
+                }
+            }
+            if (program.errorCode != EquationErrorHandler.OK) {
+                returnError(code, setErrorLoc, program.errorCode, program.errorLoc);
+            } else {
+                code.writeByte(INVOKEVIRTUAL);
+                code.writeShort(setResult);
+                code.writeByte(ICONST_0); // EquationErrorHandler.OK
+                code.writeByte(IRETURN);
+            }
+            return bytes.toByteArray();
+        }
+
+        // Returns NEEDS_EXACT if Evaluator.needsExact is true for the value on top of the stack
+        private void checkExact(DataOutputStream code, int needsExact) throws IOException {
+            code.writeByte(DUP2);
+            code.writeByte(INVOKESTATIC);
+            code.writeShort(needsExact);
+            code.writeByte(IFEQ);
+            code.writeShort(5); // Jump over the return below
+            code.writeByte(ICONST_M1); // Evaluator.NEEDS_EXACT
+            code.writeByte(IRETURN);
+        }
+
+        // With [..., lhs, rhs] on the stack, returns the error if rhs is 0 and falls through otherwise
+        private void checkDivisor(DataOutputStream code, int setErrorLoc, int error, int location) throws IOException {
+            code.writeByte(DUP2);
+            code.writeByte(DCONST_0);
+            code.writeByte(DCMPL);
+            ByteArrayOutputStream errorBytes = new ByteArrayOutputStream();
+            returnError(new DataOutputStream(errorBytes), setErrorLoc, error, location);
+            code.writeByte(IFNE);
+            code.writeShort(3 + errorBytes.size()); // Jump over the error path
+            code.write(errorBytes.toByteArray());
+        }
+
+        // The values left on the stack don't matter as the method returns
+        private void returnError(DataOutputStream code, int setErrorLoc, int error, int location) throws IOException {
+            code.writeByte(ALOAD_1);
+            pushInt(code, location);
+            code.writeByte(INVOKEVIRTUAL);
+            code.writeShort(setErrorLoc);
+            pushInt(code, error);
+            code.writeByte(IRETURN);
+        }
+
+        private void pushInt(DataOutputStream code, int value) throws IOException {
+            if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                code.writeByte(BIPUSH);
+                code.writeByte(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                code.writeByte(SIPUSH);
+                code.writeShort(value);
+            } else {
+                code.writeByte(LDC_W);
+                code.writeShort(intConstant(value));
+            }
+        }
+
+        private int utf8(String text) throws IOException {
+            Integer index = poolIndexes.get(text);
+            if (index == null) {
+                pool.writeByte(1);
+                pool.writeUTF(text);
+                index = poolCount++;
+                poolIndexes.put(text, index);
+            }
+            return index;
+        }
+
+        private int classRef(String name) throws IOException {
+            String key = "class " + name;
+            Integer index = poolIndexes.get(key);
+            if (index == null) {
+                int nameIndex = utf8(name);
+                pool.writeByte(7);
+                pool.writeShort(nameIndex);
+                index = poolCount++;
+                poolIndexes.put(key, index);
+            }
+            return index;
+        }
+
+        private int methodRef(String owner, String name, String type) throws IOException {
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(type);
+            pool.writeByte(12); // NameAndType
+            pool.writeShort(nameIndex);
+            pool.writeShort(typeIndex);
+            int nameAndType = poolCount++;
+            pool.writeByte(10); // Methodref
+            pool.writeShort(ownerIndex);
+            pool.writeShort(nameAndType);
+            return poolCount++;
+        }
+
+        private int intConstant(int value) throws IOException {
+            Integer index = poolIndexes.get(value);
+            if (index == null) {
+                pool.writeByte(3);
+                pool.writeInt(value);
+                index = poolCount++;
+                poolIndexes.put(value, index);
+            }
+            return index;
+        }
+
+        // Keyed by the bits so that 0.0 and -0.0 (equal as doubles) get entries of their own
+        private int doubleConstant(double value) throws IOException {
+            Long key = Double.doubleToRawLongBits(value);
+            Integer index = poolIndexes.get(key);
+            if (index == null) {
+                pool.writeByte(6);
+                pool.writeDouble(value);
+                index = poolCount;
+                poolCount += 2; // A double takes two pool slots
+                poolIndexes.put(key, index);
+            }
+            return index;
+        }
+    }
+}
@@ -0,0 +1,395 @@
+import java.util.Arrays;
+
+/*
+ * This class was made so that a math expression only has to be lexed and run through the
+ * Shunting-Yard algorithm once. compile() turns the expression into a post-fix program (numbers and
+ * operators in the order they are calculated), and Evaluator runs that program. A compiled
+ * expression never changes after compile(), so the same object can be cached (see
+ * ExpressionCache) and evaluated by any number of threads at the same time.
+ *
+ * Every error except dividing/taking the modulo by zero can be found without doing the math (the
+ * amount of numbers on the stack doesn't depend on their values). When compile() finds such an
+ * error it stops, and the program ends with that error instead. Evaluator still runs every
+ * instruction before the error first, so a "Cannot divide by zero" that the old calculate-while-
+ * parsing code would have hit first is still the error that gets reported.
+ *
+ * Explaination of Variables:
+ *
+ * ops: The instructions of the program. TOK_NUMBER pushes the matching entry of constants, every
+ * other token is an operator that works on the top of the stack
+ * constants: The value to push for every TOK_NUMBER instruction (unused for operators)
+ * locations: Where the operator appeared within the expression, used for error messages
+ * errorCode, errorLoc, errorChar: The error that the program ends with (see
+ * EquationErrorHandler), or EquationErrorHandler.OK if the expression is valid
+ * maxDepth: The deepest the stack gets while running the program
+ * parameters: The parameter names of a registered formula (see compileFormula), null otherwise.
+ * TOK_IDENT instructions push the argument whose index is the matching entry of constants
+ * executions: How often Evaluator ran the program (only counted until it is generated, and not
+ * exact as threads don't synchronize on it)
+ * generated: The program as bytecode (see BytecodeCompiler) once it ran often enough, else null
+ * exactConstants: Whole numbers written in the expression that are too big for a double to hold
+ * exactly (2^53 and up), as longs at the index of their TOK_NUMBER instruction (0 everywhere else).
+ * null when there are none, which is almost always. Evaluator runs programs that have them with
+ * exact integer math from the start
+ */
+public class CompiledExpression {
+    private String expression;
+    EquationLexer.Token[] ops;
+    double[] constants;
+    int[] locations;
+    int length;
+    int errorCode = EquationErrorHandler.OK;
+    int errorLoc;
+    char errorChar;
+    int maxDepth;
+    String[] parameters;
+    int executions;
+    volatile GeneratedExpression generated;
+    long[] exactConstants;
+    private int depth; // Only used while compiling: how many numbers would be on the stack right now
+
+    private CompiledExpression(String expression) {
+        this.expression = expression;
+        ops = new EquationLexer.Token[8];
+        constants = new double[8];
+        locations = new int[8];
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    // The formatted error message the program ends with, or null if the expression is valid
+    public String getError() {
+        if (errorCode == EquationErrorHandler.OK) {
+            return null;
+        }
+        return EquationErrorHandler.createErrMsg(errorCode, errorLoc, errorChar);
+    }
+
+    /*
+     * A rough count of the bytes this object keeps alive, used by ExpressionCache to stay under
+     * its memory cap. Object headers and references are counted as 16 and 8 bytes.
+     */
+    public long estimatedBytes() {
+        long bytes = 16 + 9 * 8; // This object
+        bytes += 40 + 2L * expression.length(); // The expression string
+        bytes += 3 * 16 + (long) ops.length * (8 + 8 + 4); // The three arrays
+        return bytes;
+    }
+
+    /*
+     * This function compiles the math expressions provided by the clients. This is thread-safe
+     * as it only uses local variables.
+     *
+     * The algorithm itself is the Shunting-Yard algorithm, but it only keeps track of how many
+     * numbers would be on the stack instead of calculating them. This is to catch invalid
+     * expressions early (e.g., 2 +/ 2) at exactly the same place the calculation would have.
+     *
+     * This also features the use of a hand-written thread-safe Lexer to help get the next
+     * character in the expression (e.g., the next number or operator)
+     */
+    public static CompiledExpression compile(String expression) {
+        return compile(expression, null);
+    }
+
+    /*
+     * Compiles the body of a registered formula, in which the given parameter names can be used
+     * like numbers (e.g. "(a*b)+c^2" with parameters a, b and c). Any other name is an
+     * UNKNOWN_NAME error.
+     */
+    public static CompiledExpression compileFormula(String expression, String[] parameters) {
+        return compile(expression, parameters);
+    }
+
+    public int getParameterCount() {
+        return parameters == null ? 0 : parameters.length;
+    }
+
+    private static CompiledExpression compile(String expression, String[] parameters) {
+        CompiledExpression program = new CompiledExpression(expression);
+        program.parameters = parameters;
+        /*
+         * It doesn't make sense to handle empty expressions, so we'll return an error because of
+         * it.
+         */
+        if (expression.isEmpty()) {
+            program.errorCode = EquationErrorHandler.EXPRESSION_EMPTY;
+            return program.trim();
+        }
+        EquationLexer lexer = new EquationLexer(expression, parameters != null);
+        /*
+         * This stack holds the operators waiting to be emitted along with the location of each
+         * operator within the math expression, so that errors can point at the right character.
+         */
+        OpStack opStack = new OpStack();
+        /*
+         * The error variable is supposed to hold the error code from a called function. If there
+         * is no error (EquationErrorHandler.OK), then the function went without errors. Otherwise,
+         * an error occurred and the program ends with it. The location of the error is stored in
+         * errorLoc.
+         *
+         * findLParen, popOpStack, and emitOp follow this same format as they return error codes.
+         */
+        int error = EquationErrorHandler.OK;
+
+        /*
+         * These Tokens and their associated uses are defined in EquationLexer.java
+         */
+
+        // Loop through the entire expression until we reach the end
+        while (error == EquationErrorHandler.OK && lexer.PeekTok() != EquationLexer.Token.TOK_EOF) {
+            switch (lexer.PeekTok()) {
+                case TOK_ERR:
+                    error = lexer.GetErrorCode();
+                    program.errorLoc = lexer.GetErrorLoc();
+                    program.errorChar = lexer.GetErrorChar();
+                    break;
+                case TOK_NUMBER:
+                    program.emitNumber(lexer.PeekNumValue());
+                    if (lexer.PeekNumIsInteger() && Math.abs(lexer.PeekNumValue()) >= Evaluator.EXACT_LIMIT) {
+                        program.keepExact(lexer.PeekNum());
+                    }
+                    break;
+                case TOK_IDENT:
+                    error = program.emitParameter(lexer.PeekIdent(), lexer.PeekNumStart() + 1);
+                    break;
+                case TOK_LPAREN:
+                    opStack.push(EquationLexer.Token.TOK_LPAREN, lexer.GetEqLoc());
+                    break;
+                case TOK_RPAREN:
+                    error = program.findLParen(opStack, lexer.GetEqLoc());
+                    break;
+                case TOK_ADD:
+                case TOK_SUB:
+                case TOK_MUL:
+                case TOK_DIV:
+                case TOK_EXP:
+                case TOK_MOD:
+                case TOK_NEGATIVE:
+                case TOK_POSITIVE:
+                    error = program.popOpStack(opStack, lexer.PeekTok());
+                    opStack.push(lexer.PeekTok(), lexer.GetEqLoc());
+                    break;
+                case TOK_EOF:
+                    break;
+            }
+            if (error == EquationErrorHandler.OK) {
+                lexer.GetNextTok(); // Get the next token
+            }
+        }
+        while (error == EquationErrorHandler.OK && !opStack.isEmpty()) {
+            if (opStack.peek() == EquationLexer.Token.TOK_LPAREN) {
+                error = program.fail(EquationErrorHandler.UNFINISHED_LPAREN, opStack.peekLocation());
+            } else {
+                error = program.emitOp(opStack.peek(), opStack.peekLocation());
+            }
+            opStack.pop();
+        }
+        // If there is more than one number left on the stack, then there were not enough
+        // operators to perform operations
+        if (error == EquationErrorHandler.OK && program.depth != 1) {
+            error = program.fail(EquationErrorHandler.UNFINISHED_EXPRESSION, 0);
+        }
+        program.errorCode = error;
+        return program.trim();
+    }
+
+    private void emitNumber(double value) {
+        add(EquationLexer.Token.TOK_NUMBER, value, 0);
+        depth++;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    // Keeps the last number emitted as a long if it fits in one (if not it stays a double)
+    private void keepExact(String digits) {
+        long value;
+        try {
+            value = Long.parseLong(digits);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (exactConstants == null) {
+            exactConstants = new long[ops.length];
+        } else if (exactConstants.length < ops.length) {
+            exactConstants = Arrays.copyOf(exactConstants, ops.length);
+        }
+        exactConstants[length - 1] = value;
+    }
+
+    private int emitParameter(String name, int location) {
+        for (int i = 0; i < parameters.length; i++) {
+            if (parameters[i].equals(name)) {
+                add(EquationLexer.Token.TOK_IDENT, i, 0);
+                depth++;
+                maxDepth = Math.max(maxDepth, depth);
+                return EquationErrorHandler.OK;
+            }
+        }
+        return fail(EquationErrorHandler.UNKNOWN_NAME, location);
+    }
+
+    private int fail(int code, int location) {
+        errorLoc = location;
+        return code;
+    }
+
+    // Adds an operator to the program after checking that it has enough operands
+    private int emitOp(EquationLexer.Token op, int location) {
+        switch (op) {
+            case TOK_ADD:
+            case TOK_SUB:
+            case TOK_MUL:
+            case TOK_DIV:
+            case TOK_MOD:
+            case TOK_EXP:
+                if (depth < 2) {
+                    return fail(EquationErrorHandler.EXPECTED_TWO_OPERANDS, location);
+                }
+                depth--;
+                break;
+            case TOK_POSITIVE:
+            case TOK_NEGATIVE:
+                if (depth < 1) {
+                    return fail(EquationErrorHandler.EXPECTED_AN_OPERAND, location);
+                }
+                break;
+            default:
+                return EquationErrorHandler.OK;
+        }
+        add(op, 0, location);
+        return EquationErrorHandler.OK;
+    }
+
+    // This method is only used when a ")" is found due to the Shunting-Yard
+    // algorithm
+    private int findLParen(OpStack opStack, int rparenLoc) {
+        while (!opStack.isEmpty() && opStack.peek() != EquationLexer.Token.TOK_LPAREN) {
+            int error = emitOp(opStack.peek(), opStack.peekLocation());
+            opStack.pop();
+            if (error != EquationErrorHandler.OK) {
+                return error;
+            }
+        }
+        if (opStack.isEmpty()) {
+            return fail(EquationErrorHandler.UNFINISHED_RPAREN, rparenLoc);
+        }
+        // If the opStack isn't empty, then the loop stopped when a "(" was found.
+        // Therefore, we can just pop it without checking
+        opStack.pop();
+        return EquationErrorHandler.OK;
+    }
+
+    // Emit all operations with equal or greater precedence than the given
+    // operator
+    private int popOpStack(OpStack opStack, EquationLexer.Token op) {
+        while (!opStack.isEmpty() && getOpPrecedence(opStack.peek()) >= getOpPrecedence(op)) {
+            int error = emitOp(opStack.peek(), opStack.peekLocation());
+            opStack.pop();
+            if (error != EquationErrorHandler.OK) {
+                return error;
+            }
+        }
+        return EquationErrorHandler.OK;
+    }
+
+    private void add(EquationLexer.Token op, double constant, int location) {
+        if (length == ops.length) {
+            ops = Arrays.copyOf(ops, length * 2);
+            constants = Arrays.copyOf(constants, length * 2);
+            locations = Arrays.copyOf(locations, length * 2);
+        }
+        ops[length] = op;
+        constants[length] = constant;
+        locations[length] = location;
+        length++;
+    }
+
+    // Drops the unused room at the end of the arrays since compiled expressions are cached
+    private CompiledExpression trim() {
+        ops = Arrays.copyOf(ops, length);
+        constants = Arrays.copyOf(constants, length);
+        locations = Arrays.copyOf(locations, length);
+        if (exactConstants != null) {
+            exactConstants = Arrays.copyOf(exactConstants, length);
+        }
+        return this;
+    }
+
+    /*
+     * Runs the program and returns the response to send to the client ("5,<num>" or
+     * "4,Error: ..."). This is thread-safe as the program is never changed and every thread
+     * has its own Evaluator.
+     */
+    public String evaluate() {
+        Evaluator evaluator = Evaluator.forCurrentThread();
+        return evaluator.response(this, evaluator.run(this));
+    }
+
+    // This stores the operator precedence of the operators within the math
+    // expressions
+    static int getOpPrecedence(EquationLexer.Token op) {
+        /*
+         * The Tokens and their associated meanings are explained within
+         * EquationLexer.java
+         */
+        switch (op) {
+            case TOK_ADD:
+            case TOK_SUB:
+                return 1;
+            case TOK_MUL:
+            case TOK_DIV:
+            case TOK_MOD:
+                return 2;
+            case TOK_EXP:
+                return 3;
+            case TOK_NEGATIVE:
+            case TOK_POSITIVE:
+                return 4;
+            case TOK_LPAREN:
+            default:
+                return 0;
+        }
+    }
+
+    /*
+     * The operators waiting to be emitted, each with its location within the expression. Two
+     * arrays are used instead of a stack of objects so that pushing an operator doesn't allocate.
+     * StreamingExpression uses it too.
+     */
+    static class OpStack {
+        private EquationLexer.Token[] ops = new EquationLexer.Token[16];
+        private int[] locations = new int[16];
+        private int size;
+
+        void push(EquationLexer.Token op, int location) {
+            if (size == ops.length) {
+                ops = Arrays.copyOf(ops, size * 2);
+                locations = Arrays.copyOf(locations, size * 2);
+            }
+            ops[size] = op;
+            locations[size] = location;
+            size++;
+        }
+
+        EquationLexer.Token peek() {
+            return ops[size - 1];
+        }
+
+        int peekLocation() {
+            return locations[size - 1];
+        }
+
+        void pop() {
+            size--;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
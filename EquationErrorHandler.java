@@ -1,9 +1,69 @@
 /*
  * This class was made to make a uniform error reporting system across the lexer and the server.
  * It creates the error message using the correct protocol to send to the client.
+ *
+ * The lexer and the evaluator report errors as one of the codes below plus the location of the
+ * error, and only turn them into a message when the response is sent. That way finding an error
+ * (or finding none) doesn't build any strings. The code of an error is its index in MESSAGES.
  */
 public class EquationErrorHandler {
+    public static final int OK = 0; // No error
+    public static final int EXPRESSION_EMPTY = 1;
+    public static final int UNEXPECTED_TOKEN = 2; // The message is followed by the offending char
+    public static final int DECIMAL_POINT_TWICE = 3;
+    public static final int UNFINISHED_DECIMAL = 4;
+    public static final int UNFINISHED_LPAREN = 5;
+    public static final int UNFINISHED_RPAREN = 6;
+    public static final int UNFINISHED_EXPRESSION = 7;
+    public static final int EXPECTED_TWO_OPERANDS = 8;
+    public static final int EXPECTED_AN_OPERAND = 9;
+    public static final int DIVIDE_BY_ZERO = 10;
+    public static final int MODULO_BY_ZERO = 11;
+    // Only for registered formulas ("13," and "14," messages, see p01Server.handleRegister)
+    public static final int UNKNOWN_NAME = 12; // A name that is not a parameter or formula
+    public static final int BAD_FORMULA = 13; // The "name(parameters)=" part is malformed
+    public static final int WRONG_ARGUMENT_COUNT = 14;
+    public static final int BAD_ARGUMENT = 15; // An argument of a call is not a plain number
+    // Only for streamed expressions ("15," messages, see StreamingExpression)
+    public static final int EXPRESSION_TOO_LONG = 16;
+    public static final int NESTED_TOO_DEEPLY = 17;
+    public static final int NUMBER_TOO_LONG = 18;
+
+    private static final String[] MESSAGES = {
+            "",
+            "Expression is empty",
+            "Unexpected token ",
+            "Decimal point appeared more than once in number",
+            "Unfinished decimal number",
+            "Unfinished (",
+            "Unfinished )",
+            "Unfinished expression",
+            "Expected two operands",
+            "Expected an operand",
+            "Cannot divide by zero",
+            "Cannot modulo by zero",
+            "Unknown name",
+            "Bad formula definition",
+            "Wrong number of arguments",
+            "Argument is not a number",
+            "Expression is too long",
+            "Expression is nested too deeply",
+            "Number is too long",
+    };
+
     public static String createErrMsg(String errString, int loc) {
         return "4,Error: " + errString + " at char " + loc;
     }
-}
\ No newline at end of file
+
+    // token is only used for UNEXPECTED_TOKEN
+    public static String createErrMsg(int code, int loc, char token) {
+        if (code == UNEXPECTED_TOKEN) {
+            return createErrMsg(MESSAGES[code] + token, loc);
+        }
+        return createErrMsg(MESSAGES[code], loc);
+    }
+
+    public static String getMessage(int code) {
+        return MESSAGES[code];
+    }
+}
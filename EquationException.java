@@ -0,0 +1,34 @@
+/*
+ * This class was made so that programs using MathClient get the server's "4,Error: ... at char N"
+ * answers as an exception they can inspect instead of a string they would have to parse.
+ *
+ * errorCode: One of the codes in EquationErrorHandler
+ * position: The location of the error within the expression, the same number as "at char N"
+ */
+public class EquationException extends Exception {
+    private static final long serialVersionUID = 1L;
+    private int errorCode;
+    private int position;
+
+    public EquationException(int errorCode, int position, String expression) {
+        super(describe(errorCode, position, expression));
+        this.errorCode = errorCode;
+        this.position = position;
+    }
+
+    public int getErrorCode() {
+        return errorCode;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    // Builds the same text the server sends in the text protocol, minus the "4," prefix
+    private static String describe(int errorCode, int position, String expression) {
+        // For unexpected tokens the position points just past the offending character
+        char token = errorCode == EquationErrorHandler.UNEXPECTED_TOKEN && position >= 1
+                && position <= expression.length() ? expression.charAt(position - 1) : '?';
+        return EquationErrorHandler.createErrMsg(errorCode, position, token).substring(2);
+    }
+}
@@ -3,10 +3,11 @@
  * 
  * Explaination of Variables:
  * 
- * equation: Represents the math expression to break down into smaller chunks. This string will not change and will be traversed instead using eqLoc
+ * equation: Represents the math expression to break down into smaller chunks. This can be any CharSequence (a String, or e.g. a CharBuffer over bytes read from the network). It will not change and will be traversed instead using eqLoc
  * eqLoc: The current location of the next character to read (and to determine if it is a character, a part of a character, whitespace, or an invalid character)
- * curNum: The string that stores a valid number. This will be updated whenever curTok is assigned to TOK_NUMBER
- * errMsg: The string that stores the error message if one occurred. This will be updated whenever curTok is assigned to TOK_ERR
+ * numStart, numEnd, numValue: Where the current number starts and ends (exclusive) within equation, and its value. Numbers are parsed straight out of equation instead of being copied into a string first. These will be updated whenever curTok is assigned to TOK_NUMBER
+ * numIsInteger: Whether the current number was written without a decimal point, so that numbers too big for a double to hold exactly can still be read as a long (see CompiledExpression)
+ * errCode, errLoc, errChar: The error that occurred (see EquationErrorHandler), where it occurred and, for unexpected tokens, the offending character. These will be updated whenever curTok is assigned to TOK_ERR
  * possibleUnary: This is a boolean flag to help the lexer determine if a (+/-) it encounters is a positive/negative sign or an addition/subtraction sign
  * There are currently 3 possible cases this is true:
  *  1. If the (+/-) is the first character in the expression
@@ -14,10 +15,15 @@
  *  3. If a left parentheses preceeds (+/-)
  */
 public class EquationLexer {
-    private String equation;
-    private String curNum;
+    private CharSequence equation;
+    private int numStart;
+    private int numEnd;
+    private double numValue;
+    private boolean numIsInteger;
     private Token curTok;
-    private String errMsg;
+    private int errCode;
+    private int errLoc;
+    private char errChar;
     private int eqLoc;
     private boolean possibleUnary;
 
@@ -34,10 +40,18 @@ public class EquationLexer {
          * are stored in as a Double value. This is done because all int values can be
          * stored within a Double (a double can store 32-bit signed integer values).
          * 
-         * The string of the number is stored within curNum.
+         * The number is found in equation between numStart and numEnd, and its value is
+     * in numValue.
          */
         TOK_NUMBER,
 
+        /*
+         * A name (a letter followed by letters, digits or "_"), found between numStart and
+         * numEnd. Only produced when the lexer was made to allow names (for the parameters of
+         * registered formulas), otherwise a letter is an unexpected token as before.
+         */
+        TOK_IDENT,
+
         /*
          * Binary Operators
          */
@@ -61,17 +75,36 @@ public class EquationLexer {
         TOK_RPAREN, // Right Parentheses
         TOK_EOF, // To signify that there are no new tokens to read
         /*
-         * If this token is encountered, then errMsg will be set to the error that
-         * occurred.
+         * If this token is encountered, then errCode and errLoc will be set to the
+         * error that occurred.
          */
         TOK_ERR,
     }
 
-    public EquationLexer(String e) {
+    /*
+     * Powers of ten that a double can hold exactly. A number with at most 15 significant digits
+     * and at most 22 digits after the decimal point is (its digits as a whole number) / 10^k, and
+     * as both of those are exact doubles the division gives the same correctly rounded value as
+     * Double.parseDouble.
+     */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22,
+    };
+    private static final int MAX_FAST_DIGITS = 15;
+
+    private boolean allowIdentifiers;
+
+    public EquationLexer(CharSequence e) {
+        ChangeEquation(e);
+    }
+
+    public EquationLexer(CharSequence e, boolean allowIdentifiers) {
+        this.allowIdentifiers = allowIdentifiers;
         ChangeEquation(e);
     }
 
-    public void ChangeEquation(String e) {
+    public void ChangeEquation(CharSequence e) {
         equation = e;
         curTok = Token.TOK_EOF;
         eqLoc = 0;
@@ -79,12 +112,52 @@ public class EquationLexer {
         GetNextTok();
     }
 
+    // The current number as written in the expression without any "_" separators
     public String PeekNum() {
-        return curNum;
+        StringBuilder digits = new StringBuilder(numEnd - numStart);
+        for (int i = numStart; i < numEnd; i++) {
+            if (equation.charAt(i) != '_') {
+                digits.append(equation.charAt(i));
+            }
+        }
+        return digits.toString();
+    }
+
+    // The current name when the token is TOK_IDENT
+    public String PeekIdent() {
+        return equation.subSequence(numStart, numEnd).toString();
+    }
+
+    public double PeekNumValue() {
+        return numValue;
+    }
+
+    public boolean PeekNumIsInteger() {
+        return numIsInteger;
+    }
+
+    public int PeekNumStart() {
+        return numStart;
+    }
+
+    public int PeekNumEnd() {
+        return numEnd;
     }
 
     public String GetError() {
-        return errMsg;
+        return EquationErrorHandler.createErrMsg(errCode, errLoc, errChar);
+    }
+
+    public int GetErrorCode() {
+        return errCode;
+    }
+
+    public int GetErrorLoc() {
+        return errLoc;
+    }
+
+    public char GetErrorChar() {
+        return errChar;
     }
 
     public EquationLexer.Token PeekTok() {
@@ -95,6 +168,19 @@ public class EquationLexer {
         return eqLoc;
     }
 
+    public boolean PeekPossibleUnary() {
+        return possibleUnary;
+    }
+
+    /*
+     * Goes back to reading at loc, with possibleUnary as it was there. Used when equation is still
+     * growing (see StreamingExpression) and the token just read might not be complete yet.
+     */
+    public void Rewind(int loc, boolean unary) {
+        eqLoc = loc;
+        possibleUnary = unary;
+    }
+
     public void GetNextTok() {
         char current_char = '\0';
         // Go through the entire expression and break whenever a non-whitespace
@@ -170,12 +256,35 @@ public class EquationLexer {
                 HandleDigit(current_char, true);
                 break;
             default:
-                curTok = Token.TOK_ERR;
-                errMsg = EquationErrorHandler.createErrMsg("Unexpected token " + current_char, eqLoc);
+                if (allowIdentifiers && IsLetter(current_char)) {
+                    HandleIdentifier();
+                    break;
+                }
+                SetError(EquationErrorHandler.UNEXPECTED_TOKEN, eqLoc);
+                errChar = current_char;
                 break;
         }
     }
 
+    static boolean IsLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    static boolean IsIdentifierChar(char c) {
+        return IsLetter(c) || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    // Reads the rest of a name whose first letter is right before eqLoc
+    private void HandleIdentifier() {
+        numStart = eqLoc - 1;
+        while (eqLoc < equation.length() && IsIdentifierChar(equation.charAt(eqLoc))) {
+            eqLoc++;
+        }
+        numEnd = eqLoc;
+        curTok = Token.TOK_IDENT;
+        possibleUnary = false;
+    }
+
     /*
      * This function handles the processing of digits to ensure that the given
      * number is a valid number
@@ -186,7 +295,21 @@ public class EquationLexer {
      * up
      */
     private void HandleDigit(char starting_char, boolean is_decimal) {
-        curNum = String.valueOf(starting_char);
+        numStart = eqLoc - 1;
+        /*
+         * While scanning, the digits are collected as a whole number (mantissa) along with how
+         * many of them came after the decimal point, so that short numbers can be turned into a
+         * double without going through Double.parseDouble (see POWERS_OF_TEN).
+         */
+        long mantissa = 0;
+        int significantDigits = 0;
+        int fractionDigits = 0;
+        int digits = 0;
+        if (!is_decimal) {
+            mantissa = starting_char - '0';
+            significantDigits = mantissa == 0 ? 0 : 1;
+            digits = 1;
+        }
         boolean process_num = true;
         char current_char = '\0';
         for (; eqLoc < equation.length() && process_num; eqLoc++) {
@@ -202,18 +325,25 @@ public class EquationLexer {
                 case '7':
                 case '8':
                 case '9':
-                    curNum += current_char;
+                    digits++;
+                    if (is_decimal) {
+                        fractionDigits++;
+                    }
+                    // Leading zeros don't count towards the precision of the number
+                    if (significantDigits > 0 || current_char != '0') {
+                        significantDigits++;
+                    }
+                    if (significantDigits <= MAX_FAST_DIGITS) {
+                        mantissa = mantissa * 10 + (current_char - '0');
+                    }
                     break;
                 case '.':
                     if (is_decimal) {
                         eqLoc++;
-                        errMsg = EquationErrorHandler.createErrMsg("Decimal point appeared more than once in number",
-                                eqLoc);
-                        curTok = Token.TOK_ERR;
+                        SetError(EquationErrorHandler.DECIMAL_POINT_TWICE, eqLoc);
                         return;
                     } else {
                         is_decimal = true;
-                        curNum += current_char;
                     }
                 case '_':
                     break;
@@ -223,12 +353,24 @@ public class EquationLexer {
                     break;
             }
         }
-        if (curNum.equals(".")) {
-            errMsg = EquationErrorHandler.createErrMsg("Unfinished decimal number", eqLoc);
-            curTok = Token.TOK_ERR;
+        numEnd = eqLoc;
+        if (digits == 0) { // Only a "." was found
+            SetError(EquationErrorHandler.UNFINISHED_DECIMAL, eqLoc);
         } else {
             curTok = Token.TOK_NUMBER;
+            numIsInteger = !is_decimal;
+            if (significantDigits <= MAX_FAST_DIGITS && fractionDigits < POWERS_OF_TEN.length) {
+                numValue = fractionDigits == 0 ? mantissa : mantissa / POWERS_OF_TEN[fractionDigits];
+            } else {
+                numValue = Double.parseDouble(PeekNum());
+            }
         }
         possibleUnary = false;
     }
-}
+
+    private void SetError(int code, int loc) {
+        curTok = Token.TOK_ERR;
+        errCode = code;
+        errLoc = loc;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,460 @@
+import java.util.Arrays;
+
+/*
+ * This class was made to run CompiledExpressions without allocating anything on the way. Each
+ * thread gets its own Evaluator (see forCurrentThread) whose number stack is a plain double[]
+ * that is reused for every expression, and errors are reported as the codes from
+ * EquationErrorHandler. The only object made for a request is the response String at the very
+ * end, and none at all when the caller only needs the number (see getResult).
+ *
+ * Explaination of Variables:
+ *
+ * numStack: The values calculated so far. It grows when a program needs a deeper stack than any
+ * program before it and is never shrunk
+ * result: The value of the last program that ran without errors
+ * errorLoc: Where the error of the last program that failed occurred
+ * tierThreshold: How many runs of a program it takes before it is turned into bytecode (see
+ * BytecodeCompiler), 0 to never do that
+ * longStack, isLong: The exact side of the stack for runExact, see below
+ * resultIsLong, longResult: Set when the last result came out of runExact as a whole number, which
+ * is then sent as longResult (result has the same value rounded to a double)
+ *
+ * Whole numbers are calculated exactly: a value that is a whole number is kept as a long, and
+ * +, -, *, ^, /, %, unary + and - on two of them stay longs (using the same overflow checks as
+ * Math.addExact and friends) as long as the answer is a whole number that fits. Only a result that
+ * isn't a whole number (7/2, 2^-1) or overflows a long is calculated with doubles instead, and a
+ * double that comes out as a whole number again (2.5*2) goes back to being a long. So 2^62+1 is
+ * 4611686018427387905 and not the nearest double, and no result is cut down to an int anymore.
+ *
+ * Doing that for every instruction would make the common case slower, so programs first run on
+ * doubles alone (interpret, or the generated code of BytecodeCompiler). Doubles hold every whole
+ * number below 2^53 (EXACT_LIMIT) exactly, so as long as no +, -, * or ^ gives anything that
+ * big (Infinity aside, see needsExact), the double answer is the exact answer. The first one that
+ * does makes the fast path stop with NEEDS_EXACT, and the program runs again in runExact.
+ * Programs with numbers of 2^53 or more written in them (see CompiledExpression.exactConstants)
+ * go straight to runExact. Both paths give -0.0 where doubles would (-1*0, 0/-1, -4%2), which
+ * only shows in what it turns into, like (-1*0)^-1 being -Infinity.
+ */
+public class Evaluator {
+    private static final ThreadLocal<Evaluator> PER_THREAD = ThreadLocal.withInitial(Evaluator::new);
+
+    private static volatile int tierThreshold = 1000;
+
+    // Whole numbers below this size are exact in a double
+    static final double EXACT_LIMIT = 9007199254740992.0; // 2^53
+    // What the fast path returns when it reached EXACT_LIMIT (never returned by run)
+    static final int NEEDS_EXACT = -1;
+    private static final double LONG_LIMIT = 9223372036854775808.0; // 2^63
+    private static final long NEGATIVE_ZERO = Double.doubleToRawLongBits(-0.0);
+
+    private double[] numStack = new double[32];
+    private long[] longStack = new long[32];
+    private boolean[] isLong = new boolean[32];
+    private double result;
+    private boolean resultIsLong;
+    private long longResult;
+    private int errorLoc;
+
+    public static Evaluator forCurrentThread() {
+        return PER_THREAD.get();
+    }
+
+    public double getResult() {
+        return result;
+    }
+
+    public int getErrorLoc() {
+        return errorLoc;
+    }
+
+    public static void setTierThreshold(int runs) {
+        tierThreshold = runs;
+    }
+
+    // Used by the code BytecodeCompiler generates
+    void setResult(double result) {
+        this.result = result;
+        resultIsLong = false;
+    }
+
+    void setErrorLoc(int errorLoc) {
+        this.errorLoc = errorLoc;
+    }
+
+    /*
+     * Runs the program and returns EquationErrorHandler.OK (the value is then in getResult) or
+     * the code of the error that occurred (its location is then in getErrorLoc).
+     */
+    public int run(CompiledExpression program) {
+        return run(program, null);
+    }
+
+    // Same as run(program) for a registered formula, with the values of its parameters
+    public int run(CompiledExpression program, double[] arguments) {
+        int status = program.exactConstants == null ? runFast(program, arguments) : NEEDS_EXACT;
+        if (status == NEEDS_EXACT) {
+            status = runExact(program, arguments);
+        }
+        return status;
+    }
+
+    // Runs the program on doubles, returns NEEDS_EXACT if that isn't exact enough
+    private int runFast(CompiledExpression program, double[] arguments) {
+        GeneratedExpression generated = program.generated;
+        if (generated != null) {
+            return generated.run(this, arguments);
+        }
+        int threshold = tierThreshold;
+        if (threshold > 0 && ++program.executions >= threshold) {
+            generated = BytecodeCompiler.generate(program);
+            if (generated != null) {
+                program.generated = generated;
+                return generated.run(this, arguments);
+            }
+            program.executions = Integer.MIN_VALUE; // Too long to generate, don't try again
+        }
+        return interpret(program, arguments);
+    }
+
+    /*
+     * Whether a value of +, -, * or ^ on the fast path may not be the exact answer: a whole number
+     * that big may have been rounded. Infinity isn't rounded from anything (with longs it would
+     * have overflowed into doubles just the same), and sending it to runExact would lose the sign
+     * of a -0.0 that became -Infinity, e.g. in (-1*0)^-1. NaN isn't either.
+     */
+    static boolean needsExact(double value) {
+        double size = Math.abs(value);
+        return size >= EXACT_LIMIT && size != Double.POSITIVE_INFINITY;
+    }
+
+    // Runs the program one instruction at a time
+    private int interpret(CompiledExpression program, double[] arguments) {
+        if (numStack.length < program.maxDepth) {
+            numStack = Arrays.copyOf(numStack, Math.max(program.maxDepth, numStack.length * 2));
+        }
+        double[] numStack = this.numStack;
+        EquationLexer.Token[] ops = program.ops;
+        int top = 0; // Number of values on numStack
+        double lhs, rhs; // Variables for the left and right hand side of the equation
+        /*
+         * The compiler already checked that every operator has enough operands, so the only
+         * errors left to look for are dividing and taking the modulo by zero.
+         */
+        for (int i = 0; i < program.length; i++) {
+            switch (ops[i]) {
+                case TOK_NUMBER:
+                    numStack[top++] = program.constants[i];
+                    break;
+                case TOK_IDENT: // A parameter, its index is in constants
+                    numStack[top++] = arguments[(int) program.constants[i]];
+                    break;
+                case TOK_ADD: // Case for addition
+                    rhs = numStack[--top];
+                    lhs = numStack[top - 1];
+                    numStack[top - 1] = lhs + rhs;
+                    if (needsExact(numStack[top - 1])) {
+                        return NEEDS_EXACT;
+                    }
+                    break;
+                case TOK_SUB: // Case for subtraction
+                    rhs = numStack[--top];
+                    lhs = numStack[top - 1];
+                    numStack[top - 1] = lhs - rhs;
+                    if (needsExact(numStack[top - 1])) {
+                        return NEEDS_EXACT;
+                    }
+                    break;
+                case TOK_DIV: // Case for division
+                    rhs = numStack[--top];
+                    lhs = numStack[top - 1];
+                    if (rhs == 0) { // Check if the divisor is zero
+                        errorLoc = program.locations[i];
+                        return EquationErrorHandler.DIVIDE_BY_ZERO;
+                    }
+                    numStack[top - 1] = lhs / rhs;
+                    break;
+                case TOK_MUL:
+                    rhs = numStack[--top];
+                    lhs = numStack[top - 1];
+                    numStack[top - 1] = lhs * rhs;
+                    if (needsExact(numStack[top - 1])) {
+                        return NEEDS_EXACT;
+                    }
+                    break;
+                case TOK_MOD: // Case for modulo
+                    rhs = numStack[--top];
+                    lhs = numStack[top - 1];
+                    if (rhs == 0) { // Check if the divisor is zero
+                        errorLoc = program.locations[i];
+                        return EquationErrorHandler.MODULO_BY_ZERO;
+                    }
+                    numStack[top - 1] = lhs % rhs;
+                    break;
+                case TOK_EXP: // Case for exponentiation
+                    rhs = numStack[--top];
+                    lhs = numStack[top - 1];
+                    numStack[top - 1] = Math.pow(lhs, rhs);
+                    if (needsExact(numStack[top - 1])) {
+                        return NEEDS_EXACT;
+                    }
+                    break;
+                case TOK_POSITIVE: // Case for positive
+                    numStack[top - 1] = Math.abs(numStack[top - 1]);
+                    break;
+                case TOK_NEGATIVE: // Case for negative
+                    numStack[top - 1] = -1 * numStack[top - 1];
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (program.errorCode != EquationErrorHandler.OK) {
+            errorLoc = program.errorLoc;
+            return program.errorCode;
+        }
+        result = numStack[0];
+        resultIsLong = false;
+        return EquationErrorHandler.OK;
+    }
+
+    /*
+     * Runs the program with whole numbers kept as longs (see the top of this class). Errors are
+     * found exactly like in interpret.
+     */
+    private int runExact(CompiledExpression program, double[] arguments) {
+        ensureExactDepth(program.maxDepth);
+        EquationLexer.Token[] ops = program.ops;
+        int top = 0;
+        for (int i = 0; i < program.length; i++) {
+            EquationLexer.Token op = ops[i];
+            if (op == EquationLexer.Token.TOK_NUMBER) {
+                if (program.exactConstants != null && program.exactConstants[i] != 0) {
+                    pushLong(top++, program.exactConstants[i]);
+                } else {
+                    pushDouble(top++, program.constants[i]);
+                }
+                continue;
+            }
+            if (op == EquationLexer.Token.TOK_IDENT) {
+                pushDouble(top++, arguments[(int) program.constants[i]]);
+                continue;
+            }
+            int status = applyExact(op, top, program.locations[i]);
+            if (status != EquationErrorHandler.OK) {
+                return status;
+            }
+            if (op != EquationLexer.Token.TOK_POSITIVE && op != EquationLexer.Token.TOK_NEGATIVE) {
+                top--;
+            }
+        }
+        if (program.errorCode != EquationErrorHandler.OK) {
+            errorLoc = program.errorLoc;
+            return program.errorCode;
+        }
+        takeExactResult();
+        return EquationErrorHandler.OK;
+    }
+
+    // Makes room for depth values on the stacks of runExact
+    void ensureExactDepth(int depth) {
+        if (isLong.length < depth) {
+            int size = Math.max(depth, isLong.length * 2);
+            longStack = Arrays.copyOf(longStack, size);
+            isLong = Arrays.copyOf(isLong, size);
+            numStack = Arrays.copyOf(numStack, Math.max(size, numStack.length));
+        }
+    }
+
+    /*
+     * Runs one operator the way runExact does on a stack that holds top values: unary ones
+     * change the top value, the others replace the top two with one. Returns
+     * EquationErrorHandler.OK, or the error (dividing/taking the modulo by zero) with location
+     * as its getErrorLoc. StreamingExpression uses this too, as it runs operators as soon as
+     * they are parsed instead of running a whole program.
+     */
+    int applyExact(EquationLexer.Token op, int top, int location) {
+        if (op == EquationLexer.Token.TOK_POSITIVE || op == EquationLexer.Token.TOK_NEGATIVE) {
+            int at = top - 1;
+            boolean negative = op == EquationLexer.Token.TOK_NEGATIVE;
+            if (!isLong[at]) {
+                pushDouble(at, negative ? -1 * numStack[at] : Math.abs(numStack[at]));
+            } else if (longStack[at] == Long.MIN_VALUE) { // Its positive is one past Long.MAX_VALUE
+                pushDouble(at, -(double) Long.MIN_VALUE);
+            } else if (negative && longStack[at] == 0) {
+                pushDouble(at, -0.0); // Like -1 * 0.0 in interpret, which makes (-0)^-1 -Infinity
+            } else {
+                pushLong(at, negative ? -longStack[at] : Math.abs(longStack[at]));
+            }
+            return EquationErrorHandler.OK;
+        }
+        top--;
+        int at = top - 1;
+        double rhs = isLong[top] ? longStack[top] : numStack[top];
+        double lhs = isLong[at] ? longStack[at] : numStack[at];
+        if ((op == EquationLexer.Token.TOK_DIV || op == EquationLexer.Token.TOK_MOD) && rhs == 0) {
+            errorLoc = location;
+            return op == EquationLexer.Token.TOK_DIV ? EquationErrorHandler.DIVIDE_BY_ZERO
+                    : EquationErrorHandler.MODULO_BY_ZERO;
+        }
+        if (isLong[at] && isLong[top] && exactOp(op, at, longStack[at], longStack[top])) {
+            return EquationErrorHandler.OK;
+        }
+        switch (op) {
+            case TOK_ADD:
+                pushDouble(at, lhs + rhs);
+                break;
+            case TOK_SUB:
+                pushDouble(at, lhs - rhs);
+                break;
+            case TOK_MUL:
+                pushDouble(at, lhs * rhs);
+                break;
+            case TOK_DIV:
+                pushDouble(at, lhs / rhs);
+                break;
+            case TOK_MOD:
+                pushDouble(at, lhs % rhs);
+                break;
+            default:
+                pushDouble(at, Math.pow(lhs, rhs));
+                break;
+        }
+        return EquationErrorHandler.OK;
+    }
+
+    // Makes the bottom value of runExact's stack the result
+    void takeExactResult() {
+        resultIsLong = isLong[0];
+        longResult = longStack[0];
+        result = resultIsLong ? longResult : numStack[0];
+    }
+
+    /*
+     * Calculates lhs op rhs into slot at if the answer is a whole number that fits in a long, and
+     * returns false (leaving the slot alone) if it has to be done with doubles. rhs is never 0 for
+     * "/" and "%".
+     */
+    private boolean exactOp(EquationLexer.Token op, int at, long lhs, long rhs) {
+        long value;
+        switch (op) {
+            case TOK_ADD:
+                value = lhs + rhs;
+                if (((lhs ^ value) & (rhs ^ value)) < 0) { // Overflow, as in Math.addExact
+                    return false;
+                }
+                break;
+            case TOK_SUB:
+                value = lhs - rhs;
+                if (((lhs ^ rhs) & (lhs ^ value)) < 0) { // Overflow, as in Math.subtractExact
+                    return false;
+                }
+                break;
+            case TOK_MUL:
+                value = lhs * rhs;
+                if (Math.multiplyHigh(lhs, rhs) != (value >> 63)) { // The high half isn't just the sign
+                    return false;
+                }
+                if (value == 0 && (lhs < 0 || rhs < 0)) { // -1*0 is -0.0 with doubles
+                    pushDouble(at, -0.0);
+                    return true;
+                }
+                break;
+            case TOK_DIV:
+                if (lhs % rhs != 0 || (lhs == Long.MIN_VALUE && rhs == -1)) {
+                    return false;
+                }
+                value = lhs / rhs;
+                if (value == 0 && rhs < 0) { // 0/-1 is -0.0 with doubles
+                    pushDouble(at, -0.0);
+                    return true;
+                }
+                break;
+            case TOK_MOD:
+                value = lhs % rhs;
+                if (value == 0 && lhs < 0) { // -4%2 is -0.0 with doubles (the sign of lhs)
+                    pushDouble(at, -0.0);
+                    return true;
+                }
+                break;
+            default:
+                if (rhs < 0) { // 2^-1 isn't a whole number (and 1^-1 comes out the same either way)
+                    return false;
+                }
+                if (lhs == 0 || lhs == 1) {
+                    value = rhs == 0 ? 1 : lhs;
+                } else if (lhs == -1) {
+                    value = (rhs & 1) == 0 ? 1 : -1;
+                } else {
+                    // Square-and-multiply. |lhs| >= 2, so anything past 63 squarings overflows
+                    value = 1;
+                    long base = lhs;
+                    while (true) {
+                        if ((rhs & 1) != 0) {
+                            long product = value * base;
+                            if (Math.multiplyHigh(value, base) != (product >> 63)) {
+                                return false;
+                            }
+                            value = product;
+                        }
+                        rhs >>= 1;
+                        if (rhs == 0) {
+                            break;
+                        }
+                        long square = base * base;
+                        if (Math.multiplyHigh(base, base) != 0 || square < 0) {
+                            return false;
+                        }
+                        base = square;
+                    }
+                }
+                break;
+        }
+        pushLong(at, value);
+        return true;
+    }
+
+    void pushLong(int at, long value) {
+        longStack[at] = value;
+        isLong[at] = true;
+    }
+
+    // Stores value as a long instead if it is a whole number a double holds exactly (but not -0.0)
+    void pushDouble(int at, double value) {
+        if (value % 1 == 0 && Math.abs(value) < EXACT_LIMIT && Double.doubleToRawLongBits(value) != NEGATIVE_ZERO) {
+            pushLong(at, (long) value);
+        } else {
+            numStack[at] = value;
+            isLong[at] = false;
+        }
+    }
+
+    /*
+     * Builds the response for the status returned by run(program): "5,<num>" or "4,Error: ...".
+     */
+    public String response(CompiledExpression program, int status) {
+        if (status != EquationErrorHandler.OK) {
+            return EquationErrorHandler.createErrMsg(status, errorLoc, program.errorChar);
+        }
+        return resultResponse();
+    }
+
+    // The "5,<num>" response for the last result
+    String resultResponse() {
+        if (resultIsLong) {
+            return "5," + longResult;
+        }
+        return "5," + format(result);
+    }
+
+    /*
+     * How a result is written: whole numbers without a decimal point (12, not 12.0) and anything
+     * else as Double.toString does. Whole numbers too big for a long (which only come out of
+     * doubles, e.g. 10^300) keep Double.toString's exponent instead of made-up digits.
+     */
+    public static String format(double value) {
+        if (value % 1 == 0 && Math.abs(value) < LONG_LIMIT) {
+            return Long.toString((long) value);
+        }
+        return Double.toString(value);
+    }
+}
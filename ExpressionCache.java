@@ -0,0 +1,124 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * This class was made to keep the CompiledExpression of recently used expressions around, so that
+ * an expression that is asked for again doesn't go through EquationLexer and the Shunting-Yard
+ * algorithm a second time.
+ *
+ * The cache is split into segments (picked by the hash of the expression), each an LRU list
+ * guarded by its own lock, so math workers only contend when they look up expressions in the same
+ * segment. Compiling happens outside of the lock. Every segment gets an equal share of maxBytes
+ * (measured with CompiledExpression.estimatedBytes) and drops its least recently used entries once
+ * it goes over.
+ *
+ * hits, misses and evictions count lookups that found a compiled expression, lookups that had to
+ * compile, and entries dropped to stay under the memory cap.
+ */
+public class ExpressionCache {
+    private static final int SEGMENT_COUNT = 16; // Must be a power of two
+
+    private Segment[] segments = new Segment[SEGMENT_COUNT];
+    private long maxBytes;
+    private LongAdder hits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+    private LongAdder evictions = new LongAdder();
+
+    public ExpressionCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(maxBytes / SEGMENT_COUNT);
+        }
+    }
+
+    // Returns the compiled form of expression, compiling (and caching) it if it isn't cached yet
+    public CompiledExpression get(String expression) {
+        Segment segment = segmentFor(expression);
+        CompiledExpression compiled;
+        synchronized (segment) {
+            compiled = segment.entries.get(expression);
+        }
+        if (compiled != null) {
+            hits.increment();
+            return compiled;
+        }
+        misses.increment();
+        compiled = CompiledExpression.compile(expression);
+        segment.put(expression, compiled);
+        return compiled;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getUsedBytes() {
+        long used = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                used += segment.usedBytes;
+            }
+        }
+        return used;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+    private Segment segmentFor(String expression) {
+        int hash = expression.hashCode();
+        hash ^= hash >>> 16; // Mix the high bits in since only the low ones pick the segment
+        return segments[hash & (SEGMENT_COUNT - 1)];
+    }
+
+    private class Segment {
+        // Iteration order is least recently used first
+        private LinkedHashMap<String, CompiledExpression> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long maxBytes;
+        private long usedBytes;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized void put(String expression, CompiledExpression compiled) {
+            long bytes = compiled.estimatedBytes();
+            if (bytes > maxBytes) {
+                return; // Would never fit, so don't throw the whole segment away for it
+            }
+            CompiledExpression previous = entries.put(expression, compiled);
+            if (previous != null) {
+                // Another worker compiled the same expression at the same time
+                usedBytes -= previous.estimatedBytes();
+            }
+            usedBytes += bytes;
+            Iterator<Map.Entry<String, CompiledExpression>> eldest = entries.entrySet().iterator();
+            while (usedBytes > maxBytes && eldest.hasNext()) {
+                usedBytes -= eldest.next().getValue().estimatedBytes();
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+}
@@ -0,0 +1,9 @@
+/*
+ * A CompiledExpression turned into Java bytecode by BytecodeCompiler. run works exactly like
+ * Evaluator.run: it returns EquationErrorHandler.OK and leaves the value in the evaluator's
+ * getResult, or returns an error code and leaves its location in getErrorLoc. It can also return
+ * Evaluator.NEEDS_EXACT, which Evaluator handles by running the program with exact whole numbers.
+ */
+public interface GeneratedExpression {
+    int run(Evaluator evaluator, double[] arguments);
+}
@@ -0,0 +1,99 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * This class was made to decide which backend server a client name belongs to (see p01Gateway)
+ * in a way that barely changes when backends come and go. Every backend is put on a ring of 64-bit
+ * hashes at VIRTUAL_NODES places, and a name belongs to the first backend found going clockwise
+ * from the name's own hash. Adding a backend only takes over the names that land right before its
+ * places, and removing one only moves its own names to their next backends, so about 1/N of the
+ * names move instead of nearly all of them as with hash % N.
+ *
+ * The ring is copied on every change and swapped in as a whole, so lookups (one per joining client)
+ * never lock, and changes (a backend joining or leaving) are rare enough for the copy not to matter.
+ *
+ * Explaination of Variables:
+ *
+ * ring: Hash of each virtual node -> the backend ("host:port") it belongs to
+ * backends: Every backend on the ring, in the order they were added
+ */
+public class HashRing {
+    static final int VIRTUAL_NODES = 160;
+
+    private volatile TreeMap<Long, String> ring = new TreeMap<>();
+    private volatile List<String> backends = Collections.emptyList();
+
+    // Returns false if the backend is already on the ring
+    public synchronized boolean add(String backend) {
+        if (backends.contains(backend)) {
+            return false;
+        }
+        TreeMap<Long, String> changed = new TreeMap<>(ring);
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            changed.put(hash(backend + "#" + i), backend);
+        }
+        List<String> list = new ArrayList<>(backends);
+        list.add(backend);
+        ring = changed;
+        backends = Collections.unmodifiableList(list);
+        return true;
+    }
+
+    // Returns false if the backend wasn't on the ring
+    public synchronized boolean remove(String backend) {
+        if (!backends.contains(backend)) {
+            return false;
+        }
+        TreeMap<Long, String> changed = new TreeMap<>(ring);
+        changed.values().removeIf(backend::equals);
+        List<String> list = new ArrayList<>(backends);
+        list.remove(backend);
+        ring = changed;
+        backends = Collections.unmodifiableList(list);
+        return true;
+    }
+
+    public List<String> getBackends() {
+        return backends;
+    }
+
+    /*
+     * The backends a name belongs to, best first: the owner, then the backends that would take
+     * the name over if the ones before them were gone. Empty if there are no backends.
+     */
+    public List<String> lookup(String name) {
+        TreeMap<Long, String> current = ring;
+        List<String> order = new ArrayList<>();
+        int count = backends.size();
+        long key = hash(name);
+        // Clockwise from the name's hash, wrapping around to the start of the ring
+        for (Map<Long, String> part : List.of(current.tailMap(key, true), current.headMap(key, false))) {
+            for (String backend : part.values()) {
+                if (!order.contains(backend)) {
+                    order.add(backend);
+                    if (order.size() == count) {
+                        return order;
+                    }
+                }
+            }
+        }
+        return order;
+    }
+
+    // 64-bit FNV-1a over the UTF-8 bytes, with a final mix so that similar names spread out
+    static long hash(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : text.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
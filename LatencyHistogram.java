@@ -0,0 +1,129 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * This class was made to record latencies (in nanoseconds) cheaply from many threads at once and
+ * read percentiles back out of them, without keeping every sample around.
+ *
+ * Values below 128 get a bucket each. Above that, every power of two is split into 64 buckets,
+ * so a value is only ever off by less than 1/64 (about 1.6%) from the bucket it's counted in.
+ * That's 3776 buckets for everything up to 2^62 ns. Recording is one atomic increment.
+ *
+ * recordCorrected is for closed-loop callers that wait for each answer before asking again.
+ * When one answer takes much longer than the expected interval between requests, the requests
+ * that would have been sent (and would have waited) in the meantime are never sent, which hides
+ * the stall from the percentiles (coordinated omission). recordCorrected adds those missing
+ * samples back: latency - interval, latency - 2 * interval, and so on.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 7;
+    private static final int SUB_COUNT = 1 << SUB_BITS; // 128
+    private static final int HALF_COUNT = SUB_COUNT / 2; // 64
+    private static final int BUCKET_COUNT = (63 - (SUB_BITS - 1)) * HALF_COUNT + SUB_COUNT;
+
+    private AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private LongAdder total = new LongAdder();
+    private LongAdder sum = new LongAdder();
+    private volatile long max;
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexFor(value));
+        total.increment();
+        sum.add(value);
+        if (value > max) {
+            synchronized (this) {
+                if (value > max) {
+                    max = value;
+                }
+            }
+        }
+    }
+
+    public void recordCorrected(long value, long expectedInterval) {
+        record(value);
+        if (expectedInterval <= 0) {
+            return;
+        }
+        for (long missing = value - expectedInterval; missing >= expectedInterval; missing -= expectedInterval) {
+            record(missing);
+        }
+    }
+
+    // Adds every sample of other to this histogram
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        total.add(other.total.sum());
+        sum.add(other.sum.sum());
+        synchronized (this) {
+            max = Math.max(max, other.max);
+        }
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /*
+     * Returns the value below which the given fraction (0 to 1) of the samples fall, as the
+     * highest value of the bucket the percentile lands in. Returns 0 if nothing was recorded.
+     */
+    public long getPercentile(double fraction) {
+        long count = total.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(highestValueOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        sum.reset();
+        max = 0;
+    }
+
+    private static int indexFor(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BITS - 1);
+        // value >> shift keeps the top 7 bits, which is between 64 and 127
+        return shift * HALF_COUNT + (int) (value >> shift);
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = index / HALF_COUNT - 1;
+        long top = index - (long) shift * HALF_COUNT;
+        return ((top + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,138 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/*
+ * This class was made to cut the raw bytes read from a socket into the same lines that
+ * BufferedReader.readLine() hands back in the blocking ClientHandler. That way the non-blocking
+ * front end speaks the exact same protocol without wrapping the socket in a Reader.
+ *
+ * A line ends at "\n", "\r" or "\r\n" (just like readLine), and the terminator is not part of
+ * the line. Bytes of an unfinished line are kept until the rest of it arrives, so a line can be
+ * split across as many reads as the network likes.
+ *
+ * The bytes of a line are decoded with the default charset, which is what the InputStreamReader
+ * in ClientHandler uses.
+ *
+ * A decoder made with a streamPrefixLength can also hand a line over in pieces instead of keeping
+ * all of it (for "15," messages, see StreamingExpression). Once the first streamPrefixLength bytes
+ * of a line are in, a StreamHandler is asked whether it wants the line streamed. If it does, the
+ * rest of the line goes to onStreamBytes as it is read (slices of the buffer passed to feed,
+ * nothing is copied) and onStreamEnd is called at its terminator, so the line is never held in
+ * memory as a whole.
+ */
+public class LineDecoder {
+    /*
+     * Called once for every complete line. Returning false stops the decoder (e.g. because the
+     * client asked to quit and the connection was closed), and any bytes left over are dropped.
+     */
+    public interface LineHandler {
+        boolean onLine(String line);
+    }
+
+    // A LineHandler that can take lines in pieces, see the top of this class
+    public interface StreamHandler extends LineHandler {
+        // Gets the first bytes of a line, returns true to have the rest of it streamed
+        boolean startStream(byte[] start, int length);
+
+        // Gets the next bytes of the streamed line (without the terminator)
+        void onStreamBytes(ByteBuffer bytes);
+
+        // Called at the end of the streamed line. Returning false stops the decoder
+        boolean onStreamEnd();
+    }
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private byte[] line = new byte[128];
+    private int lineLength = 0;
+    // Set after a "\r" so that the "\n" of a "\r\n" pair does not end a second (empty) line
+    private boolean skipLF = false;
+    // How many bytes of a line StreamHandler.startStream gets to see, 0 to never stream
+    private int streamPrefixLength;
+    private boolean streaming; // The current line is being streamed
+
+    public LineDecoder() {
+    }
+
+    public LineDecoder(int streamPrefixLength) {
+        this.streamPrefixLength = streamPrefixLength;
+    }
+
+    /*
+     * Consumes every byte remaining in buffer. Returns false if the handler asked to stop.
+     */
+    public boolean feed(ByteBuffer buffer, LineHandler handler) {
+        while (buffer.hasRemaining()) {
+            if (streaming && !stream(buffer, (StreamHandler) handler)) {
+                return false;
+            }
+            if (!buffer.hasRemaining()) {
+                break;
+            }
+            byte b = buffer.get();
+            if (skipLF) {
+                skipLF = false;
+                if (b == '\n') {
+                    continue;
+                }
+            }
+            if (b == '\n' || b == '\r') {
+                skipLF = b == '\r';
+                String completed = new String(line, 0, lineLength, CHARSET);
+                lineLength = 0;
+                if (!handler.onLine(completed)) {
+                    return false;
+                }
+            } else {
+                if (lineLength == line.length) {
+                    line = Arrays.copyOf(line, line.length * 2);
+                }
+                line[lineLength++] = b;
+                if (lineLength == streamPrefixLength && handler instanceof StreamHandler
+                        && ((StreamHandler) handler).startStream(line, lineLength)) {
+                    streaming = true;
+                    lineLength = 0;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Hands the streamed line's bytes in buffer to the handler, up to and including its terminator
+    private boolean stream(ByteBuffer buffer, StreamHandler handler) {
+        int end = buffer.position();
+        while (end < buffer.limit() && buffer.get(end) != '\n' && buffer.get(end) != '\r') {
+            end++;
+        }
+        if (end > buffer.position()) {
+            ByteBuffer piece = buffer.duplicate();
+            piece.limit(end);
+            handler.onStreamBytes(piece);
+            buffer.position(end);
+        }
+        if (end == buffer.limit()) {
+            return true; // The line goes on in the next read
+        }
+        skipLF = buffer.get() == '\r';
+        streaming = false;
+        return handler.onStreamEnd();
+    }
+
+    /*
+     * Called once the peer has closed its side of the connection. readLine() returns a last line
+     * that has no terminator, so the decoder does the same.
+     */
+    public boolean finish(LineHandler handler) {
+        if (streaming) {
+            streaming = false;
+            return ((StreamHandler) handler).onStreamEnd();
+        }
+        if (lineLength == 0) {
+            return true;
+        }
+        String completed = new String(line, 0, lineLength, CHARSET);
+        lineLength = 0;
+        return handler.onLine(completed);
+    }
+}
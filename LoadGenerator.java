@@ -0,0 +1,233 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * This class was made to put a p01Server under load without opening client windows by hand. It
+ * simulates many named sessions, each a virtual thread speaking the plain text protocol ("0,name",
+ * "3,expression", "1,"), and prints the throughput and latency percentiles at the end.
+ *
+ *   java LoadGenerator [switches]
+ *
+ * Switches (see ServerOptions):
+ * --host=<host> --port=<n>   Server to load (default localhost:3092)
+ * --sessions=<n>             Number of simulated sessions (default 1000)
+ * --duration=<s>             Seconds to measure for (default 30), after --warmup=<s> (default 5)
+ * --mode=closed              Every session sends its next equation as soon as it has the answer to
+ *                            the last one, waiting --interval-ms (default 0) in between
+ * --mode=open                Equations are sent on a fixed schedule of --rate=<n> per second in total
+ *                            (default 1000) no matter how long the answers take
+ * --mix=a:60,b:30,c:10       Weights of the equation kinds: simple ("12+7"), complex (nested
+ *                            parentheses, all operators) and malformed (errors the server reports
+ *                            through EquationErrorHandler). Default simple:60,complex:30,malformed:10
+ * --expressions=<file>       Use the lines of file as the equations instead of --mix
+ * --churn=<n>                Sessions that quit and join again under a new name per second
+ *
+ * Latency is measured from the moment a request should have been sent. In open-loop mode that's
+ * its slot in the schedule, so a stalled server shows up in the percentiles even though the
+ * sessions were stuck waiting (no coordinated omission). In closed-loop mode it's also reported
+ * "corrected" with LatencyHistogram.recordCorrected using --interval-ms as the expected interval.
+ */
+public class LoadGenerator {
+    private static final String[] MALFORMED = {
+            "2+(3", "4*)", "1/0", "7%0", "2 3", "3..4", ".", "5+abc", "*2", "", "(((1)", "-",
+    };
+
+    private String host;
+    private int port;
+    private boolean openLoop;
+    private long intervalNanos; // Per session: the think time (closed) or time between sends (open)
+    private long churnEveryNanos; // Per session: how long a session stays before rejoining, 0 for never
+    private int[] mixWeights; // simple, complex, malformed
+    private List<String> expressions; // From --expressions, or null
+
+    private volatile boolean measuring;
+    private volatile boolean stopping;
+    private LatencyHistogram latency = new LatencyHistogram();
+    private LatencyHistogram corrected = new LatencyHistogram();
+    private LongAdder answers = new LongAdder();
+    private LongAdder errors = new LongAdder();
+    private LongAdder rejoins = new LongAdder();
+    private LongAdder failures = new LongAdder();
+    private AtomicInteger nextName = new AtomicInteger();
+    private String runId = Long.toString(System.currentTimeMillis() % 100000);
+
+    public static void main(String[] args) throws Exception {
+        ServerOptions options = new ServerOptions(args);
+        LoadGenerator generator = new LoadGenerator();
+        generator.host = options.getString("host", "localhost");
+        generator.port = options.getInt("port", 3092);
+        int sessions = options.getInt("sessions", 1000);
+        int duration = options.getInt("duration", 30);
+        int warmup = options.getInt("warmup", 5);
+        generator.openLoop = options.getString("mode", "closed").equals("open");
+        if (generator.openLoop) {
+            int rate = Math.max(1, options.getInt("rate", 1000));
+            generator.intervalNanos = TimeUnit.SECONDS.toNanos(1) * sessions / rate;
+        } else {
+            generator.intervalNanos = TimeUnit.MILLISECONDS.toNanos(options.getInt("interval-ms", 0));
+        }
+        int churn = options.getInt("churn", 0);
+        generator.churnEveryNanos = churn > 0 ? TimeUnit.SECONDS.toNanos(1) * sessions / churn : 0;
+        generator.mixWeights = parseMix(options.getString("mix", "simple:60,complex:30,malformed:10"));
+        String file = options.getString("expressions", null);
+        if (file != null) {
+            generator.expressions = Files.readAllLines(Paths.get(file));
+        }
+        generator.run(sessions, warmup, duration);
+    }
+
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[3];
+        for (String part : mix.split(",")) {
+            String[] nameAndWeight = part.split(":");
+            int weight = Integer.parseInt(nameAndWeight[1].trim());
+            switch (nameAndWeight[0].trim()) {
+                case "simple":
+                    weights[0] = weight;
+                    break;
+                case "complex":
+                    weights[1] = weight;
+                    break;
+                case "malformed":
+                    weights[2] = weight;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown equation kind in --mix: " + nameAndWeight[0]);
+            }
+        }
+        return weights;
+    }
+
+    private void run(int sessions, int warmup, int duration) throws InterruptedException {
+        System.out.printf("%d sessions, %s loop, warming up for %ds%n", sessions, openLoop ? "open" : "closed", warmup);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < sessions; i++) {
+            // Spread the sessions' schedules over one interval so they don't all send at once
+            long offset = intervalNanos > 0 ? ThreadLocalRandom.current().nextLong(intervalNanos) : 0;
+            threads.add(Thread.ofVirtual().start(() -> runSession(offset)));
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+        latency.reset();
+        corrected.reset();
+        answers.reset();
+        errors.reset();
+        rejoins.reset();
+        failures.reset();
+        measuring = true;
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(duration));
+        measuring = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        stopping = true;
+        for (Thread thread : threads) {
+            thread.join(1000);
+        }
+
+        System.out.printf("answers: %d (%.0f/s), error answers: %d, rejoins: %d, failed connections: %d%n",
+                answers.sum(), answers.sum() / seconds, errors.sum(), rejoins.sum(), failures.sum());
+        printLatency(openLoop ? "latency (from scheduled send time)" : "latency", latency);
+        if (!openLoop && intervalNanos > 0) {
+            printLatency("latency (corrected for coordinated omission)", corrected);
+        }
+    }
+
+    private static void printLatency(String title, LatencyHistogram histogram) {
+        System.out.println(title + ", in microseconds:");
+        System.out.printf("  mean %10.1f%n", histogram.getMean() / 1000);
+        double[] percentiles = { 0.5, 0.9, 0.99, 0.999 };
+        String[] names = { "p50", "p90", "p99", "p999" };
+        for (int i = 0; i < percentiles.length; i++) {
+            System.out.printf("  %-4s %10.1f%n", names[i], histogram.getPercentile(percentiles[i]) / 1000.0);
+        }
+        System.out.printf("  max  %10.1f%n", histogram.getMax() / 1000.0);
+    }
+
+    // One simulated session, which rejoins under a new name every churnEveryNanos
+    private void runSession(long offset) {
+        long nextSend = System.nanoTime() + offset;
+        while (!stopping) {
+            try (Socket socket = new Socket(host, port)) {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+                String name = "load-" + runId + "-" + nextName.getAndIncrement();
+                out.write("0," + name + "\n");
+                out.flush();
+                String joined = in.readLine();
+                if (joined == null || !joined.startsWith("0,")) {
+                    failures.increment();
+                    continue;
+                }
+                long leaveAt = churnEveryNanos > 0
+                        ? System.nanoTime() + ThreadLocalRandom.current().nextLong(churnEveryNanos * 2)
+                        : Long.MAX_VALUE;
+                if (!openLoop) {
+                    nextSend = System.nanoTime();
+                }
+                while (!stopping && System.nanoTime() < leaveAt) {
+                    long now = System.nanoTime();
+                    if (nextSend > now) {
+                        TimeUnit.NANOSECONDS.sleep(nextSend - now);
+                    }
+                    out.write("3," + nextExpression() + "\n");
+                    out.flush();
+                    String answer = in.readLine();
+                    long done = System.nanoTime();
+                    if (answer == null) {
+                        failures.increment();
+                        break;
+                    }
+                    if (measuring) {
+                        latency.record(done - nextSend);
+                        if (!openLoop) {
+                            corrected.recordCorrected(done - nextSend, intervalNanos);
+                        }
+                        answers.increment();
+                        if (answer.startsWith("4,")) {
+                            errors.increment();
+                        }
+                    }
+                    // Open loop keeps to the schedule, closed loop waits from the answer
+                    nextSend = openLoop ? nextSend + intervalNanos : done + intervalNanos;
+                }
+                out.write("1,\n");
+                out.flush();
+                if (!stopping) {
+                    rejoins.increment();
+                }
+            } catch (IOException e) {
+                failures.increment();
+                try {
+                    Thread.sleep(100); // Don't spin if the server is down
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private String nextExpression() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (expressions != null) {
+            return expressions.get(random.nextInt(expressions.size()));
+        }
+        int pick = random.nextInt(Math.max(1, mixWeights[0] + mixWeights[1] + mixWeights[2]));
+        if (pick < mixWeights[0]) {
+            return random.nextInt(1000) + "+" + random.nextInt(1000);
+        } else if (pick < mixWeights[0] + mixWeights[1]) {
+            return "((" + random.nextInt(100) + "." + random.nextInt(100) + "*-" + random.nextInt(50) + ")^2 - "
+                    + random.nextInt(1000) + "/(" + (1 + random.nextInt(9)) + "%" + (2 + random.nextInt(5)) + "))*+("
+                    + random.nextInt(10) + "-" + random.nextInt(10) + ")";
+        }
+        return MALFORMED[random.nextInt(MALFORMED.length)];
+    }
+}
@@ -0,0 +1,251 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * This class was made so other Java programs can use the math server without going through the
+ * interactive p01Client. For example:
+ *
+ *   try (MathClient client = new MathClient("localhost", 3092, "billing", 4)) {
+ *       double total = client.evaluate("(12+30)*1.07").get();
+ *   }
+ *
+ * The client keeps a pool of sessions (sockets that have already joined with "0,<name>"), each
+ * using the binary protocol (see BinaryCodec), so every session can carry many requests at once.
+ * evaluate() doesn't wait for the answer: it picks a session round robin, sends the request and
+ * returns a future that the session's reader thread completes when the answer arrives. Errors in
+ * the expression complete the future with an EquationException that carries the error code and
+ * position. It does block while the request is written to the socket (so while the server isn't
+ * reading), and when the session it picked has to be connected first it waits for the connect and
+ * the join, as do other callers that need a session connected at the same time.
+ *
+ * A session whose connection breaks fails the requests it had in flight with an IOException and
+ * is reconnected by the next evaluate() that picks it.
+ *
+ * Explaination of Variables:
+ *
+ * namePrefix: Sessions join as namePrefix-0, namePrefix-1, ... (with a suffix added if a name is
+ * still taken, e.g. by a session of a previous run that the server hasn't dropped yet)
+ * sessions: The pool. An entry is null or closed until it is (re)connected
+ */
+public class MathClient implements AutoCloseable {
+    private static final int NAME_ATTEMPTS = 5;
+
+    private String host;
+    private int port;
+    private String namePrefix;
+    private Session[] sessions;
+    private AtomicInteger nextSession = new AtomicInteger();
+    private volatile boolean closed;
+
+    public MathClient(String host, int port, String namePrefix, int poolSize) {
+        this.host = host;
+        this.port = port;
+        this.namePrefix = namePrefix;
+        sessions = new Session[Math.max(1, poolSize)];
+    }
+
+    public CompletableFuture<Double> evaluate(String expression) {
+        CompletableFuture<Double> result = new CompletableFuture<>();
+        if (closed) {
+            result.completeExceptionally(new IOException("Client is closed"));
+            return result;
+        }
+        int index = Math.floorMod(nextSession.getAndIncrement(), sessions.length);
+        try {
+            sessionAt(index).send(expression, result);
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    public void close() {
+        closed = true;
+        for (int i = 0; i < sessions.length; i++) {
+            Session session;
+            synchronized (this) {
+                session = sessions[i];
+                sessions[i] = null;
+            }
+            if (session != null) {
+                session.quit();
+            }
+        }
+    }
+
+    // Returns a connected session for the slot, connecting a new one if needed
+    private Session sessionAt(int index) throws IOException {
+        Session session = sessions[index];
+        if (session != null && !session.broken) {
+            return session;
+        }
+        synchronized (this) {
+            session = sessions[index];
+            if (session == null || session.broken) {
+                session = connect(namePrefix + "-" + index);
+                sessions[index] = session;
+            }
+            return session;
+        }
+    }
+
+    private Session connect(String name) throws IOException {
+        for (int attempt = 0; attempt < NAME_ATTEMPTS; attempt++) {
+            String candidate = attempt == 0 ? name : name + "." + attempt;
+            Session session = new Session(new Socket(host, port));
+            boolean joined = false;
+            try {
+                joined = session.join(candidate);
+            } finally {
+                if (!joined) { // Still a text mode connection, so there's no QUIT frame to send
+                    session.socket.close();
+                }
+            }
+            if (joined) {
+                session.startReader();
+                return session;
+            }
+        }
+        throw new IOException("Could not find a free name starting with " + name);
+    }
+
+    private static class Session {
+        private Socket socket;
+        private DataInputStream in;
+        private OutputStream out;
+        private ReentrantLock writeLock = new ReentrantLock();
+        private AtomicInteger nextRequestId = new AtomicInteger();
+        // Requests sent on this session that have not been answered yet, by request id
+        private Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+        private volatile boolean broken;
+
+        Session(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out = socket.getOutputStream();
+        }
+
+        // Returns false if the name is taken
+        boolean join(String name) throws IOException {
+            out.write(("0," + name + ";binary\n").getBytes());
+            out.flush();
+            String response = readLine();
+            if (response != null && response.startsWith("2,")) {
+                return false;
+            }
+            String accepted = readLine();
+            if (response == null || !response.startsWith("0,") || accepted == null || !accepted.equals("8,binary")) {
+                socket.close();
+                throw new IOException("Server did not accept the session: " + response + " / " + accepted);
+            }
+            return true;
+        }
+
+        void startReader() {
+            Thread reader = new Thread(this::readAnswers, "math-client-" + socket.getLocalPort());
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void send(String expression, CompletableFuture<Double> result) throws IOException {
+            int requestId = nextRequestId.getAndIncrement();
+            pending.put(requestId, new Pending(expression, result));
+            if (broken) { // fail() may have run before the put, in which case nobody would answer
+                pending.remove(requestId);
+                throw new IOException("Connection to the server was lost");
+            }
+            byte[] frame = BinaryCodec.encodeEval(requestId, expression);
+            writeLock.lock();
+            try {
+                out.write(frame);
+                out.flush();
+            } catch (IOException e) {
+                pending.remove(requestId);
+                fail(e);
+                throw e;
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        private void readAnswers() {
+            try {
+                BinaryCodec.Frame frame;
+                while ((frame = BinaryCodec.readFrame(in)) != null) {
+                    Pending request = pending.remove(frame.requestId);
+                    if (request == null) {
+                        continue;
+                    }
+                    if (frame.opcode == BinaryCodec.RESULT) {
+                        request.result.complete(frame.getResult());
+                    } else if (frame.getErrorCode() < BinaryCodec.BAD_REQUEST) {
+                        request.result.completeExceptionally(
+                                new EquationException(frame.getErrorCode(), frame.getErrorLoc(), request.expression));
+                    } else {
+                        request.result.completeExceptionally(
+                                new IOException("Server rejected the request (error code " + frame.getErrorCode() + ")"));
+                    }
+                }
+                fail(new EOFException("Server closed the connection"));
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        private void fail(IOException cause) {
+            broken = true;
+            for (Integer requestId : pending.keySet()) {
+                Pending request = pending.remove(requestId);
+                if (request != null) {
+                    request.result.completeExceptionally(cause);
+                }
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already broken, nothing left to do
+            }
+        }
+
+        void quit() {
+            writeLock.lock();
+            try {
+                out.write(BinaryCodec.encodeQuit());
+                out.flush();
+            } catch (IOException e) {
+                // The session is being dropped either way
+            } finally {
+                writeLock.unlock();
+            }
+            fail(new IOException("Client is closed"));
+        }
+
+        // Reads one "\n" terminated line without buffering past it, as frames follow
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = in.read()) >= 0 && b != '\n') {
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+            return b < 0 && line.length() == 0 ? null : line.toString();
+        }
+    }
+
+    private static class Pending {
+        String expression;
+        CompletableFuture<Double> result;
+
+        Pending(String expression, CompletableFuture<Double> result) {
+            this.expression = expression;
+            this.result = result;
+        }
+    }
+}
@@ -0,0 +1,298 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/*
+ * This class was made to measure a change to the lexer, the compiler or the evaluator on its own,
+ * without starting a server. Every stage is run over five kinds of expressions and timed after a
+ * warm up, and the JVM's per-thread allocation counter gives the bytes allocated per operation:
+ *   java MicroBench [--only=<text>] [--baseline=microbench-baseline.txt] [--write=<file>]
+ *
+ * Stages:
+ * lex       EquationLexer.GetNextTok (and HandleDigit) over the whole expression
+ * compile   CompiledExpression.compile, the lexer plus the Shunting-Yard algorithm and getOpPrecedence
+ * evaluate  Evaluator.run on an already compiled expression (what performOp used to do), always
+ *           interpreted
+ * generated The same expressions turned into bytecode by BytecodeCompiler, as Evaluator.run does
+ *           for expressions that ran often enough
+ * request   What processMathTask does for a new expression: compile, evaluate, build the response
+ * cached    What processMathTask does for an expression in the ExpressionCache
+ *
+ * Expressions: short ("1+2"), long (a few hundred characters), deep (parentheses nested 40 deep),
+ * unary (chains of +/- signs) and error (expressions that end in each kind of EquationErrorHandler
+ * error).
+ *
+ * Every benchmark runs in a JVM of its own (--fork=false runs them all in this one instead).
+ * A benchmark's ns/op is the median of --rounds (default 7) rounds of --round-ms (default 200), so
+ * one noisy round doesn't move it. With --baseline the results are compared against a file written
+ * by --write, and any benchmark that got slower by more than --threshold percent (default 10), or
+ * allocates more than it used to, is marked REGRESSION. The checked in microbench-baseline.txt should
+ * be rewritten (on the same machine) in the same change that is expected to move the numbers, so
+ * the difference shows up in review.
+ *
+ * Before measuring anything, the expressions in KNOWN_ANSWERS are run through the interpreter, the
+ * generated bytecode and StreamingExpression, and the run stops if any of them answers something
+ * else. They are corner cases a faster evaluator is easy to get wrong.
+ */
+public class MicroBench {
+    private static final String[] STAGES = { "lex", "compile", "evaluate", "generated", "request", "cached" };
+    private static volatile long blackhole; // Results go here so the JIT can't drop the work
+
+    // Expression, answer. -0.0 has to stay -0.0 through the fast path and the exact one
+    private static final String[][] KNOWN_ANSWERS = {
+            { "(-1*0)^-1", "5,-Infinity" }, { "((0-4)%2)^-1", "5,-Infinity" }, { "(0*-1)^-3", "5,-Infinity" },
+            { "(0/-1)^-1", "5,-Infinity" }, { "-(10^400)", "5,-Infinity" }, { "10^400-10^400", "5,NaN" },
+            { "(2^62+1)*0+(-1*0)^-1", "5,-Infinity" }, { "9007199254740993*0+((0-4)%2)^-1", "5,-Infinity" },
+            { "2^62+1", "5,4611686018427387905" }, { "9007199254740993-1", "5,9007199254740992" },
+            { "7/2", "5,3.5" }, { "5%0", "4,Error: Cannot modulo by zero at char 2" },
+    };
+
+    private static Map<String, String[]> expressionSets() {
+        Map<String, String[]> sets = new LinkedHashMap<>();
+        sets.put("short", new String[] { "1+2", "7*6", "9-3/2", "2^10", "15%4" });
+
+        StringBuilder sum = new StringBuilder();
+        StringBuilder mixed = new StringBuilder("0");
+        for (int i = 1; i <= 60; i++) {
+            sum.append(i == 1 ? "" : " + ").append(i * 37 % 1000).append('.').append(i % 10);
+            mixed.append(" ").append("+-*/%".charAt(i % 5)).append(' ').append(1 + i % 9);
+        }
+        sets.put("long", new String[] { sum.toString(), mixed.toString() });
+
+        String deepAdd = "(".repeat(40) + "1" + "+1)".repeat(40);
+        String deepMul = "(".repeat(40) + "2" + ")*1.01".repeat(40);
+        sets.put("deep", new String[] { deepAdd, deepMul });
+
+        sets.put("unary", new String[] { "-+-+-+-+-+-+-+-+-+-8", "-(-(-(-(-(3)))))*-2", "-1--2---3----4", "+-(+-(+-5))" });
+
+        sets.put("error", new String[] { "", "1+", "2*(3+4", "3+4)", "1..2", "1.", "2 3", "5+abc", "10/0", "7%(3-3)" });
+        return sets;
+    }
+
+    public static void main(String[] args) throws IOException {
+        ServerOptions options = new ServerOptions(args);
+        String only = options.getString("only", "");
+        int rounds = Math.max(1, options.getInt("rounds", 7));
+        int roundMillis = options.getInt("round-ms", 200);
+        int warmupMillis = options.getInt("warmup-ms", 1000);
+        String baselineFile = options.getString("baseline", null);
+        String writeFile = options.getString("write", null);
+        double threshold = options.getInt("threshold", 10) / 100.0;
+        boolean fork = !options.getString("fork", "true").equals("false");
+
+        String single = options.getString("run", null);
+        if (single == null && !checkAnswers()) {
+            System.exit(1);
+        }
+        if (single != null) { // We are a forked JVM running one benchmark for the parent
+            String[] stageAndSet = single.split("\\.");
+            double[] result = run(stageAndSet[0], expressionSets().get(stageAndSet[1]), rounds, roundMillis, warmupMillis);
+            System.out.printf(Locale.ROOT, "%s %.1f %.1f%n", single, result[0], result[1]);
+            return;
+        }
+
+        Map<String, double[]> baseline = baselineFile != null ? readResults(baselineFile) : Collections.emptyMap();
+        Map<String, double[]> results = new LinkedHashMap<>();
+        System.out.printf("%-18s %12s %10s%s%n", "benchmark", "ns/op", "B/op", baselineFile != null ? "   vs baseline" : "");
+        for (String stage : STAGES) {
+            for (Map.Entry<String, String[]> set : expressionSets().entrySet()) {
+                String name = stage + "." + set.getKey();
+                if (!name.contains(only)) {
+                    continue;
+                }
+                double[] result = fork ? runForked(name, args) : run(stage, set.getValue(), rounds, roundMillis, warmupMillis);
+                results.put(name, result);
+                System.out.printf("%-18s %12.1f %10.1f%s%n", name, result[0], result[1],
+                        compare(result, baseline.get(name), threshold));
+            }
+        }
+
+        if (writeFile != null) {
+            try (PrintWriter out = new PrintWriter(new FileWriter(writeFile))) {
+                out.println("# benchmark ns/op B/op, written by java MicroBench --write=" + writeFile);
+                out.println("# " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version") + ", "
+                        + Runtime.getRuntime().availableProcessors() + " cpus");
+                for (Map.Entry<String, double[]> result : results.entrySet()) {
+                    out.printf(Locale.ROOT, "%s %.1f %.1f%n", result.getKey(), result.getValue()[0], result.getValue()[1]);
+                }
+            }
+        }
+    }
+
+    // Runs KNOWN_ANSWERS through every way of evaluating, prints what differs and returns false if anything did
+    private static boolean checkAnswers() {
+        boolean right = true;
+        Evaluator evaluator = new Evaluator();
+        for (String[] known : KNOWN_ANSWERS) {
+            CompiledExpression program = CompiledExpression.compile(known[0]);
+            Evaluator.setTierThreshold(0);
+            String interpreted = evaluator.response(program, evaluator.run(program));
+            program.generated = BytecodeCompiler.generate(program);
+            String generated = evaluator.response(program, evaluator.run(program));
+            StreamingExpression stream = new StreamingExpression(1 << 20, 1000);
+            stream.feed(ByteBuffer.wrap(known[0].getBytes()));
+            String streamed = stream.finish();
+            for (String answer : new String[] { interpreted, generated, streamed }) {
+                if (!answer.equals(known[1])) {
+                    System.out.println("WRONG ANSWER: " + known[0] + " should be " + known[1] + " (interpreted "
+                            + interpreted + ", generated " + generated + ", streamed " + streamed + ")");
+                    right = false;
+                    break;
+                }
+            }
+        }
+        Evaluator.setTierThreshold(1000);
+        return right;
+    }
+
+    // Returns the median ns/op and the B/op of one benchmark
+    private static double[] run(String stage, String[] expressions, int rounds, int roundMillis, int warmupMillis) {
+        Runnable op = benchmark(stage, expressions);
+        measure(op, warmupMillis); // Warm up so that the JIT has compiled the loop
+        double[] nanos = new double[rounds];
+        for (int i = 0; i < rounds; i++) {
+            nanos[i] = measure(op, roundMillis)[0];
+        }
+        Arrays.sort(nanos);
+        double bytes = measure(op, roundMillis)[1];
+        return new double[] { nanos[rounds / 2], bytes };
+    }
+
+    /*
+     * Runs one benchmark in a JVM of its own with the same switches, so the JIT's profile of one
+     * benchmark (e.g. which stage the op lambda was) can't slow down the next one, and the numbers
+     * don't depend on which other benchmarks were picked with --only.
+     */
+    private static double[] runForked(String name, String[] args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("MicroBench");
+        command.addAll(Arrays.asList(args));
+        command.add("--run=" + name);
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String last = null;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                last = line;
+            }
+        }
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        String[] fields = last == null ? new String[0] : last.trim().split("\\s+");
+        if (process.exitValue() != 0 || fields.length != 3 || !fields[0].equals(name)) {
+            throw new IOException("Forked benchmark " + name + " failed: " + last);
+        }
+        return new double[] { Double.parseDouble(fields[1]), Double.parseDouble(fields[2]) };
+    }
+
+    // Builds one operation of a benchmark, which works through every expression of the set once
+    private static Runnable benchmark(String stage, String[] expressions) {
+        CompiledExpression[] programs = new CompiledExpression[expressions.length];
+        for (int i = 0; i < expressions.length; i++) {
+            programs[i] = CompiledExpression.compile(expressions[i]);
+        }
+        switch (stage) {
+            case "lex":
+                EquationLexer lexer = new EquationLexer("");
+                return () -> {
+                    long tokens = 0;
+                    for (String expression : expressions) {
+                        lexer.ChangeEquation(expression);
+                        do {
+                            lexer.GetNextTok();
+                            tokens++;
+                        } while (lexer.PeekTok() != EquationLexer.Token.TOK_EOF && lexer.PeekTok() != EquationLexer.Token.TOK_ERR);
+                    }
+                    blackhole += tokens;
+                };
+            case "compile":
+                return () -> {
+                    for (String expression : expressions) {
+                        blackhole += CompiledExpression.compile(expression).length;
+                    }
+                };
+            case "evaluate":
+            case "generated":
+                if (stage.equals("generated")) {
+                    for (CompiledExpression program : programs) {
+                        program.generated = BytecodeCompiler.generate(program);
+                    }
+                } else {
+                    Evaluator.setTierThreshold(0);
+                }
+                Evaluator evaluator = Evaluator.forCurrentThread();
+                return () -> {
+                    for (CompiledExpression program : programs) {
+                        blackhole += evaluator.run(program) + (long) evaluator.getResult();
+                    }
+                };
+            case "request":
+                return () -> {
+                    for (String expression : expressions) {
+                        blackhole += CompiledExpression.compile(expression).evaluate().length();
+                    }
+                };
+            case "cached":
+                ExpressionCache cache = new ExpressionCache(1024 * 1024);
+                return () -> {
+                    for (String expression : expressions) {
+                        blackhole += cache.get(expression).evaluate().length();
+                    }
+                };
+            default:
+                throw new IllegalArgumentException("Unknown stage " + stage);
+        }
+    }
+
+    // Runs op over and over for about the given time and returns the nanoseconds and bytes per op
+    private static double[] measure(Runnable op, long millis) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        long ops = 0;
+        long bytesBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        long now;
+        do {
+            // Only check the clock every 64 ops so that reading it doesn't show up in the numbers
+            for (int i = 0; i < 64; i++) {
+                op.run();
+            }
+            ops += 64;
+            now = System.nanoTime();
+        } while (now < deadline);
+        long bytes = threads.getCurrentThreadAllocatedBytes() - bytesBefore;
+        return new double[] { (double) (now - start) / ops, (double) bytes / ops };
+    }
+
+    private static String compare(double[] result, double[] base, double threshold) {
+        if (base == null) {
+            return "";
+        }
+        double change = base[0] == 0 ? 0 : result[0] / base[0] - 1;
+        boolean slower = change > threshold;
+        boolean allocates = result[1] > base[1] * 1.05 + 1; // Allow for rounding and the odd stray allocation
+        return String.format("   %+6.1f%% %+8.1f B%s", change * 100, result[1] - base[1],
+                slower || allocates ? "  REGRESSION" : "");
+    }
+
+    private static Map<String, double[]> readResults(String file) throws IOException {
+        Map<String, double[]> results = new HashMap<>();
+        for (String line : Files.readAllLines(Paths.get(file))) {
+            if (line.isBlank() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.trim().split("\\s+");
+            results.put(fields[0], new double[] { Double.parseDouble(fields[1]), Double.parseDouble(fields[2]) });
+        }
+        return results;
+    }
+}
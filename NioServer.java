@@ -0,0 +1,257 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * This class was made to serve clients from a few selector ("reactor") threads instead of
+ * parking one pool thread per client inside readLine(). A client that is not sending anything
+ * only costs a registered channel, so the number of connected clients is limited by file
+ * descriptors rather than by the size of a thread pool.
+ *
+ * The main thread accepts connections and hands each one to a reactor (round robin). A reactor
+ * reads whatever bytes are available and passes them to p01Server.Connection.onBytes, the same
+ * protocol code that ClientHandler uses. Math requests still go through p01Server's task queues, so the
+ * reactors don't evaluate them. The one exception is a streamed "15," expression: StreamingExpression
+ * calculates it while its bytes are read, so that work happens on the reactor and the other clients
+ * of that reactor wait while it does (only the answer goes through the task queue, to keep it in order).
+ *
+ * Responses can be produced on any thread (usually the math worker), so they are collected in
+ * the connection's ResponseBuffer and written by the connection's reactor. A write is scheduled at
+ * most once until the reactor gets to it, so everything that arrives in the meantime goes out in
+ * the same write call. While more than --max-output-bytes of a client's answers are waiting, its
+ * channel is taken off OP_READ, so a client that doesn't read its answers stops being read too.
+ */
+public class NioServer {
+    private Reactor[] reactors;
+    private int nextReactor = 0;
+
+    public NioServer(int reactorCount) throws IOException {
+        reactors = new Reactor[Math.max(1, reactorCount)];
+        for (int i = 0; i < reactors.length; i++) {
+            reactors[i] = new Reactor();
+        }
+    }
+
+    // Accepts connections forever on the calling thread
+    public void serve(int port) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        // Only start the reactors once the port is ours, so a failed bind doesn't leave them running
+        for (int i = 0; i < reactors.length; i++) {
+            new Thread(reactors[i], "reactor-" + i).start();
+        }
+        System.out.println("System is running on port " + port + " (" + reactors.length + " reactor threads)");
+        p01Server.listening();
+        while (true) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                p01Server.metrics.connectionAccepted();
+                Reactor reactor = reactors[nextReactor];
+                nextReactor = (nextReactor + 1) % reactors.length;
+                reactor.register(channel);
+            } catch (IOException e) {
+                System.err.println("Error accepting client connection: " + e.getMessage());
+            }
+        }
+    }
+
+    static class Reactor implements Runnable {
+        private Selector selector;
+        // Work handed to this reactor by other threads (new channels, pending writes)
+        private Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        // One read buffer per reactor is enough as every read is fully decoded before the next
+        private ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        Reactor() throws IOException {
+            selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    NioConnection connection = new NioConnection(channel, this);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    p01Server.watch(connection);
+                } catch (IOException e) {
+                    System.err.println("Error registering client connection: " + e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException closeError) {
+                        closeError.printStackTrace();
+                    }
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            pending.add(task);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = pending.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            connection.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    System.err.println("Reactor error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    static class NioConnection extends p01Server.Connection {
+        private SocketChannel channel;
+        private Reactor reactor;
+        private SelectionKey key;
+        // What is being written right now (only touched by the reactor thread), null if nothing
+        private ByteBuffer writing;
+        // Set while a flush is scheduled on the reactor, so that requestWrite only schedules one
+        private AtomicBoolean flushScheduled = new AtomicBoolean();
+        private Runnable flushTask = this::flush;
+        // Set (on the reactor thread) once the connection is closed but answers are still to be
+        // written. The channel is closed by flush once they are
+        private boolean closing;
+
+        NioConnection(SocketChannel channel, Reactor reactor) {
+            this.channel = channel;
+            this.reactor = reactor;
+        }
+
+        // Runs on the reactor thread
+        void onReadable(ByteBuffer readBuffer) {
+            int read;
+            try {
+                readBuffer.clear();
+                read = channel.read(readBuffer);
+            } catch (IOException e) {
+                closeConnection();
+                return;
+            }
+            if (read < 0) {
+                onEndOfStream();
+                return;
+            }
+            readBuffer.flip();
+            onBytes(readBuffer);
+            updateReadInterest();
+        }
+
+        /*
+         * Stops reading while outputFull and starts again once the answers have been written
+         * (called after every read and every flush, the only times it can change in a way that
+         * matters: answers added by math workers always end in a flush).
+         */
+        private void updateReadInterest() {
+            if (!key.isValid()) {
+                return;
+            }
+            boolean read = !closing && !outputFull();
+            int ops = key.interestOps();
+            if (read != ((ops & SelectionKey.OP_READ) != 0)) {
+                key.interestOps(read ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+            }
+        }
+
+        // Can be called from any thread
+        void requestWrite() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                reactor.execute(flushTask);
+            }
+        }
+
+        // Runs on the reactor thread. Writes as much as the socket takes and waits for
+        // OP_WRITE if the rest does not fit yet.
+        void flush() {
+            flushScheduled.set(false); // Anything appended from now on schedules another flush
+            try {
+                while (true) {
+                    if (writing == null && (writing = output.take()) == null) {
+                        break;
+                    }
+                    channel.write(writing);
+                    if (writing.hasRemaining()) {
+                        if (key.isValid()) {
+                            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        }
+                        updateReadInterest();
+                        return;
+                    }
+                    output.release(writing);
+                    writing = null;
+                }
+                if (closing && unanswered.get() == 0) { // Everything the client asked for went out
+                    channel.close();
+                    return;
+                }
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+                updateReadInterest();
+            } catch (ClosedChannelException e) {
+                writing = null;
+            } catch (IOException e) {
+                writing = null;
+                if (!closing) {
+                    closeConnection();
+                    return;
+                }
+                try {
+                    channel.close(); // The client is gone, so what is left can't be written anyway
+                } catch (IOException closeError) {
+                    // Nothing to do
+                }
+            }
+        }
+
+        /*
+         * Like ClientHandler.closeSocket, answers that are ready (and, here, the ones still being
+         * evaluated) are written before the channel is closed, e.g. for a client that sends its
+         * requests and "1," in one go. Reading stops right away. A reaped client may not be
+         * reading at all, so its channel is closed without waiting.
+         */
+        void closeSocket() throws IOException {
+            if (reaped || key == null) {
+                if (channel.isOpen()) {
+                    channel.close();
+                }
+                return;
+            }
+            reactor.execute(() -> {
+                closing = true;
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+                flush();
+            });
+        }
+    }
+}
@@ -0,0 +1,154 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.concurrent.Semaphore;
+
+/*
+ * This class was made to compare the text protocol with the binary one (see BinaryCodec). It
+ * sends the same expressions to a running server over both, keeping up to --window requests in
+ * flight (pipelined "6," lines for text, frames for binary), and prints the bytes sent and
+ * received per request and the requests per second:
+ *   java ProtocolBench [--host=localhost] [--port=3092] [--requests=200000] [--window=256]
+ */
+public class ProtocolBench {
+    private static final String[] EXPRESSIONS = {
+            "1+2",
+            "2*(3+4)-5/2",
+            "((1.5+2.25)*(3-4.75))^2 % 7",
+            "123456*654321",
+            "10/0",
+    };
+
+    public static void main(String[] args) throws Exception {
+        ServerOptions options = new ServerOptions(args);
+        String host = options.getString("host", "localhost");
+        int port = options.getInt("port", 3092);
+        int requests = options.getInt("requests", 200000);
+        int window = options.getInt("window", 256);
+
+        System.out.printf("%-8s %12s %12s %12s%n", "protocol", "sent B/req", "recv B/req", "req/s");
+        // Run both twice and only report the second round, so the server is warmed up for both
+        for (int round = 0; round < 2; round++) {
+            for (boolean binary : new boolean[] { false, true }) {
+                run(host, port, requests, window, binary, round == 1);
+            }
+        }
+    }
+
+    private static void run(String host, int port, int requests, int window, boolean binary, boolean report)
+            throws Exception {
+        try (Socket socket = new Socket(host, port)) {
+            socket.setTcpNoDelay(true);
+            CountingOutputStream counted = new CountingOutputStream(socket.getOutputStream());
+            CountingInputStream countedIn = new CountingInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(counted));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(countedIn));
+
+            String name = "bench-" + (binary ? "binary-" : "text-") + System.nanoTime();
+            out.write(("0," + name + (binary ? ";binary" : ";pipeline") + "\n").getBytes());
+            out.flush();
+            // The join message and the "8," line that accepts the extension
+            String joined = readLine(in);
+            String accepted = readLine(in);
+            if (joined == null || accepted == null || !accepted.startsWith("8,")) {
+                throw new IOException("Server did not accept the extension: " + joined + " / " + accepted);
+            }
+            long handshakeSent = counted.count;
+            long handshakeReceived = countedIn.count;
+
+            Semaphore inFlight = new Semaphore(window);
+            Thread reader = new Thread(() -> {
+                try {
+                    for (int i = 0; i < requests; i++) {
+                        if (binary) {
+                            BinaryCodec.readFrame(in);
+                        } else {
+                            readLine(in);
+                        }
+                        inFlight.release();
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+            long start = System.nanoTime();
+            reader.start();
+            for (int i = 0; i < requests; i++) {
+                String expression = EXPRESSIONS[i % EXPRESSIONS.length];
+                if (!inFlight.tryAcquire()) {
+                    out.flush(); // Don't sit on buffered requests while waiting for answers
+                    inFlight.acquire();
+                }
+                if (binary) {
+                    out.write(BinaryCodec.encodeEval(i, expression));
+                } else {
+                    out.write(("6," + i + "," + expression + "\n").getBytes());
+                }
+            }
+            out.flush();
+            reader.join();
+            long elapsed = System.nanoTime() - start;
+            if (report) {
+                System.out.printf("%-8s %12.1f %12.1f %12.0f%n", binary ? "binary" : "text",
+                        (double) (counted.count - handshakeSent) / requests,
+                        (double) (countedIn.count - handshakeReceived) / requests,
+                        requests / (elapsed / 1e9));
+            }
+            out.write(binary ? BinaryCodec.encodeQuit() : "1,\n".getBytes());
+            out.flush();
+        }
+    }
+
+    // Reads one "\n" terminated line without buffering past it, as frames may follow
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return b < 0 && line.length() == 0 ? null : line.toString();
+    }
+
+    static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * This class was made so that answers don't have to be written to the socket one at a time by the
+ * thread that calculated them. Any thread appends its responses here (encoded straight into bytes,
+ * no String.getBytes per line) and the connection's own I/O side takes everything that piled up
+ * and writes it with a single write call. A client with many requests in flight then gets many
+ * answers per TCP segment, and the math workers only ever copy bytes into memory.
+ *
+ * Two arrays take turns: while the writer is busy with one (see take and release), responses go
+ * into the other, so in the steady state nothing is allocated.
+ *
+ * Nothing here limits how much can pile up, as the threads appending can't wait for a slow client.
+ * Instead the thread reading the connection asks pendingBytes (or waits in awaitRoom) and stops
+ * reading requests while too much is waiting, see p01Server's --max-output-bytes. That thread can
+ * be a virtual thread, so everything here uses a ReentrantLock rather than synchronized: waiting
+ * in awaitRoom with Object.wait would pin its carrier thread for as long as the client is slow.
+ *
+ * Explaination of Variables:
+ *
+ * filling, length: The bytes appended since the last take
+ * spare: The array the writer handed back with release, reused by the next take
+ * taken: Bytes handed to the writer by take that it hasn't released yet
+ * lock/released: Guard all of the above; released is signalled whenever the writer releases bytes
+ * FLUSH_BYTES: Once this much is waiting, append tells the caller to have it written right away
+ * instead of waiting for more to coalesce
+ */
+public class ResponseBuffer {
+    public static final int FLUSH_BYTES = 16 * 1024;
+    private static final int INITIAL_BYTES = 512;
+    // Arrays that grew past this (a huge batch answer) are not kept around after being written
+    private static final int MAX_KEPT_BYTES = 256 * 1024;
+    private static final Charset CHARSET = Charset.defaultCharset();
+    // Whether chars below 0x80 are one byte of the same value, which is what lets append skip the encoder
+    private static final boolean ASCII_COMPATIBLE = CHARSET.equals(StandardCharsets.UTF_8)
+            || CHARSET.equals(StandardCharsets.US_ASCII) || CHARSET.equals(StandardCharsets.ISO_8859_1);
+
+    private byte[] filling = new byte[INITIAL_BYTES];
+    private int length;
+    private byte[] spare;
+    private int taken;
+    private ReentrantLock lock = new ReentrantLock();
+    private Condition released = lock.newCondition();
+
+    /*
+     * Appends line followed by separator, encoded with the default charset. Returns true if
+     * FLUSH_BYTES or more are now waiting.
+     */
+    public boolean append(String line, String separator) {
+        lock.lock();
+        try {
+            int start = length;
+            ensureRoom(line.length() + separator.length());
+            if (!ASCII_COMPATIBLE || !putAscii(line) || !putAscii(separator)) {
+                length = start;
+                byte[] encoded = (line + separator).getBytes(CHARSET);
+                ensureRoom(encoded.length);
+                System.arraycopy(encoded, 0, filling, length, encoded.length);
+                length += encoded.length;
+            }
+            return length >= FLUSH_BYTES;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Same as append(line, separator) for bytes that are already encoded (binary frames)
+    public boolean append(byte[] bytes) {
+        lock.lock();
+        try {
+            ensureRoom(bytes.length);
+            System.arraycopy(bytes, 0, filling, length, bytes.length);
+            length += bytes.length;
+            return length >= FLUSH_BYTES;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Copies text as long as it is ASCII, returns false at the first char that isn't
+    private boolean putAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                return false;
+            }
+            filling[length++] = (byte) c;
+        }
+        return true;
+    }
+
+    private void ensureRoom(int bytes) {
+        if (length + bytes > filling.length) {
+            filling = Arrays.copyOf(filling, Math.max(filling.length * 2, length + bytes));
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return length == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Hands everything appended so far to the writer (null if there is nothing). The writer gives
+     * the buffer back with release once it has been written.
+     */
+    public ByteBuffer take() {
+        lock.lock();
+        try {
+            if (length == 0) {
+                return null;
+            }
+            ByteBuffer bytes = ByteBuffer.wrap(filling, 0, length);
+            filling = spare != null ? spare : new byte[INITIAL_BYTES];
+            spare = null;
+            taken += length;
+            length = 0;
+            return bytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void release(ByteBuffer written) {
+        lock.lock();
+        try {
+            if (written.capacity() <= MAX_KEPT_BYTES) {
+                spare = written.array();
+            }
+            taken = Math.max(0, taken - written.limit());
+            released.signalAll(); // Wakes a reader waiting in awaitRoom
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Bytes appended and not written yet (including what the writer is writing right now)
+    public int pendingBytes() {
+        lock.lock();
+        try {
+            return length + taken;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Waits up to millis for pendingBytes to be maxBytes or less, and returns whether it is. A
+     * writer that fails never releases, so callers wait in rounds and check if the connection
+     * closed in between.
+     */
+    public boolean awaitRoom(int maxBytes, long millis) throws InterruptedException {
+        lock.lock();
+        try {
+            if (length + taken > maxBytes) {
+                released.await(millis, TimeUnit.MILLISECONDS);
+            }
+            return length + taken <= maxBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,315 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * This class was made for the moment when many clients send the very same expression (every
+ * dashboard refreshing at once). An expression always has the same answer, so there is no need to
+ * evaluate it once per client:
+ * - Single flight: while one math worker is evaluating an expression, every other worker that gets
+ *   the same expression waits for that answer instead of evaluating it again (see get)
+ * - Memo: answers are kept after that, so the same expression a bit later isn't evaluated at all
+ *
+ * The memo is split into segments like ExpressionCache, each an LRU list under its own lock with
+ * an equal share of maxBytes (measured with Outcome.estimatedBytes). What is different is that an
+ * answer doesn't simply push out the least recently used ones. Each segment counts how often every
+ * expression was asked for (a FrequencySketch, which is approximate but fixed in size), and a new
+ * answer only gets in if it was asked for more often than every entry it would push out. So a
+ * flood of expressions that are each sent once can't throw out the ones sent all the time. This
+ * is the TinyLFU admission policy.
+ *
+ * Explaination of Variables:
+ *
+ * inFlight: Expressions being evaluated right now, and where their answer will show up
+ * hits: Answers found in the memo
+ * shared: Answers taken from another worker's evaluation of the same expression
+ * misses: Expressions that had to be evaluated
+ * rejected: Answers the admission policy kept out of the memo
+ * evictions: Entries pushed out to make room
+ */
+public class ResultMemo {
+    private static final int SEGMENT_COUNT = 16; // Must be a power of two
+    // Only used to size the FrequencySketch, the memo itself is limited by bytes
+    private static final int TYPICAL_ENTRY_BYTES = 256;
+
+    private ExpressionCache expressionCache;
+    private Segment[] segments = new Segment[SEGMENT_COUNT];
+    private long maxBytes;
+    private boolean singleFlight;
+    private Map<String, CompletableFuture<Outcome>> inFlight = new ConcurrentHashMap<>();
+    private LongAdder hits = new LongAdder();
+    private LongAdder shared = new LongAdder();
+    private LongAdder misses = new LongAdder();
+    private LongAdder rejected = new LongAdder();
+    private LongAdder evictions = new LongAdder();
+
+    /*
+     * The answer to one expression, in both forms a client can ask for: response for the text
+     * protocol and status/errorLoc/value for a binary frame.
+     */
+    public static class Outcome {
+        final String response;
+        final int status;
+        final int errorLoc;
+        final double value;
+
+        Outcome(String response, int status, int errorLoc, double value) {
+            this.response = response;
+            this.status = status;
+            this.errorLoc = errorLoc;
+            this.value = value;
+        }
+
+        // Evaluates the program on the calling thread
+        static Outcome of(CompiledExpression program) {
+            Evaluator evaluator = Evaluator.forCurrentThread();
+            int status = evaluator.run(program);
+            return new Outcome(evaluator.response(program, status), status, evaluator.getErrorLoc(),
+                    evaluator.getResult());
+        }
+
+        // Rough size of a memo entry: the map entry, the expression, this object and its response
+        long estimatedBytes(String expression) {
+            return 48 + (40 + 2L * expression.length()) + (16 + 4 + 4 + 8 + 8) + (40 + 2L * response.length());
+        }
+    }
+
+    /*
+     * maxBytes of 0 turns the memo off. singleFlight can be turned off on its own; with both off
+     * every expression is simply evaluated.
+     */
+    public ResultMemo(ExpressionCache expressionCache, long maxBytes, boolean singleFlight) {
+        this.expressionCache = expressionCache;
+        this.maxBytes = maxBytes;
+        this.singleFlight = singleFlight;
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(maxBytes / SEGMENT_COUNT);
+        }
+    }
+
+    /*
+     * Returns the answer to expression: from the memo, from a worker already evaluating it, or by
+     * evaluating it (compiled through expressionCache) on the calling thread.
+     */
+    public Outcome get(String expression) {
+        Segment segment = segmentFor(expression);
+        if (maxBytes > 0) {
+            Outcome memo = segment.get(expression, true);
+            if (memo != null) {
+                hits.increment();
+                return memo;
+            }
+        }
+        if (!singleFlight) {
+            misses.increment();
+            return evaluate(expression, segment);
+        }
+        CompletableFuture<Outcome> flight = new CompletableFuture<>();
+        CompletableFuture<Outcome> leader = inFlight.putIfAbsent(expression, flight);
+        if (leader != null) {
+            Outcome outcome = leader.join();
+            if (outcome != null) {
+                shared.increment();
+                return outcome;
+            }
+            misses.increment(); // The other worker failed, so try it here
+            return evaluate(expression, segment);
+        }
+        Outcome outcome = null;
+        try {
+            // Another worker may have finished it between the memo lookup and putIfAbsent
+            outcome = maxBytes > 0 ? segment.get(expression, false) : null;
+            if (outcome != null) {
+                hits.increment();
+            } else {
+                misses.increment();
+                outcome = evaluate(expression, segment);
+            }
+            return outcome;
+        } finally {
+            inFlight.remove(expression, flight);
+            flight.complete(outcome); // null if evaluating threw, the waiting workers then try themselves
+        }
+    }
+
+    private Outcome evaluate(String expression, Segment segment) {
+        Outcome outcome = Outcome.of(expressionCache.get(expression));
+        if (maxBytes > 0) {
+            segment.put(expression, outcome);
+        }
+        return outcome;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getShared() {
+        return shared.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getUsedBytes() {
+        long used = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                used += segment.usedBytes;
+            }
+        }
+        return used;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.entries.size();
+            }
+        }
+        return size;
+    }
+
+    private static int hash(String expression) {
+        int hash = expression.hashCode();
+        return hash ^ (hash >>> 16); // Mix the high bits in since only the low ones pick the segment
+    }
+
+    private Segment segmentFor(String expression) {
+        return segments[hash(expression) & (SEGMENT_COUNT - 1)];
+    }
+
+    private class Segment {
+        // Iteration order is least recently used first
+        private LinkedHashMap<String, Outcome> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private FrequencySketch sketch;
+        private long maxBytes;
+        private long usedBytes;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+            sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(16, maxBytes / TYPICAL_ENTRY_BYTES)));
+        }
+
+        // count is false when the same request already looked once, so it isn't counted twice
+        synchronized Outcome get(String expression, boolean count) {
+            if (count) {
+                sketch.increment(hash(expression));
+            }
+            return entries.get(expression);
+        }
+
+        synchronized void put(String expression, Outcome outcome) {
+            long bytes = outcome.estimatedBytes(expression);
+            if (bytes > maxBytes || entries.containsKey(expression)) {
+                return;
+            }
+            // Everything that would have to go to make room must be asked for less often than this
+            int frequency = sketch.frequency(hash(expression));
+            long room = maxBytes - usedBytes;
+            int victims = 0;
+            Iterator<Map.Entry<String, Outcome>> eldest = entries.entrySet().iterator();
+            while (room < bytes) {
+                Map.Entry<String, Outcome> victim = eldest.next();
+                if (sketch.frequency(hash(victim.getKey())) >= frequency) {
+                    rejected.increment();
+                    return;
+                }
+                room += victim.getValue().estimatedBytes(victim.getKey());
+                victims++;
+            }
+            eldest = entries.entrySet().iterator();
+            for (int i = 0; i < victims; i++) {
+                Map.Entry<String, Outcome> victim = eldest.next();
+                usedBytes -= victim.getValue().estimatedBytes(victim.getKey());
+                eldest.remove();
+                evictions.increment();
+            }
+            entries.put(expression, outcome);
+            usedBytes += bytes;
+        }
+    }
+
+    /*
+     * Approximately how often each expression was asked for lately (a count-min sketch). Every
+     * expression has a 4-bit counter in each of the four rows, picked by a different hash per
+     * row. Unrelated expressions sometimes share a counter, so the smallest of the four is the
+     * estimate. Once sampleSize increments have happened every counter is halved, so what was
+     * popular a long time ago slowly stops counting. Not thread-safe (used under the segment's lock).
+     *
+     * Explaination of Variables:
+     *
+     * table: The four rows one after another, 16 counters packed into each long
+     * mask: Width of a row (a power of two) minus one
+     */
+    static class FrequencySketch {
+        private static final long[] SEEDS = { 0x9e3779b97f4a7c15L, 0xc2b2ae3d27d4eb4fL, 0x165667b19e3779f9L,
+                0xff51afd7ed558ccdL };
+        private static final int MAX_COUNT = 15;
+
+        private long[] table;
+        private int mask;
+        private int wordsPerRow;
+        private int additions;
+        private int sampleSize;
+
+        FrequencySketch(int expectedEntries) {
+            // Eight counters per entry and row, so that the expressions seen between two halvings
+            // (ten times the entries) don't end up sharing most counters
+            int width = Integer.highestOneBit(Math.max(2, expectedEntries) * 8 - 1) << 1;
+            mask = width - 1;
+            wordsPerRow = width / 16;
+            table = new long[4 * wordsPerRow];
+            sampleSize = 10 * Math.max(2, expectedEntries);
+        }
+
+        int frequency(int hash) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < 4; row++) {
+                frequency = Math.min(frequency, counter(row, index(hash, row)));
+            }
+            return frequency;
+        }
+
+        void increment(int hash) {
+            for (int row = 0; row < 4; row++) {
+                int index = index(hash, row);
+                if (counter(row, index) < MAX_COUNT) {
+                    table[row * wordsPerRow + (index >>> 4)] += 1L << ((index & 15) << 2);
+                }
+            }
+            if (++additions == sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & 0x7777777777777777L; // Halves all 16 counters
+                }
+                additions /= 2;
+            }
+        }
+
+        private int counter(int row, int index) {
+            return (int) (table[row * wordsPerRow + (index >>> 4)] >>> ((index & 15) << 2)) & 0xf;
+        }
+
+        private int index(int hash, int row) {
+            long mixed = (hash + SEEDS[row]) * SEEDS[row];
+            return (int) (mixed ^ (mixed >>> 32)) & mask;
+        }
+    }
+}
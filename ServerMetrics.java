@@ -0,0 +1,368 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/*
+ * This class was made so the server isn't a black box while it runs. It keeps counters and
+ * latency histograms (see LatencyHistogram) that the request path updates, and makes them
+ * readable through JMX (as "p01Server:type=Metrics", e.g. in jconsole) and through the "10,"
+ * stats message of the protocol (see statsLine).
+ *
+ * Every request goes through four stages, each with a histogram of its own:
+ * read      From the moment its bytes were read from the socket until it was put on a task queue
+ *           (decoding the line or frame)
+ * wait      Time spent on the task queue until a math worker took it. This is the one that grows
+ *           first when the server can't keep up
+ * evaluate  Compiling (if not cached) and evaluating the expression
+ * write     Handing the response to the connection (copying it into its ResponseBuffer, the
+ *           socket write happens later on the connection's I/O side)
+ * "total" is all four together.
+ *
+ * Recording is a few atomic increments and no locks, so it is always on.
+ *
+ * Explaination of Variables:
+ *
+ * sessions/taskQueues/cache/memo/auditLog: The server's own structures, read (never changed) when asked for
+ * stats. auditLog is null with --no-audit
+ * acceptSlots/acceptSeconds: Accepted connections in each of the last RATE_SECONDS seconds, used for
+ * the accept rate
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    private static final int RATE_SECONDS = 10;
+
+    private Map<String, p01Server.ClientSession> sessions;
+    private List<BlockingQueue<p01Server.MathTask>> taskQueues;
+    private ExpressionCache cache;
+    private ResultMemo memo;
+    private AuditLog auditLog;
+
+    private LatencyHistogram read = new LatencyHistogram();
+    private LatencyHistogram wait = new LatencyHistogram();
+    private LatencyHistogram evaluate = new LatencyHistogram();
+    private LatencyHistogram write = new LatencyHistogram();
+    private LatencyHistogram total = new LatencyHistogram();
+    private LongAdder accepted = new LongAdder();
+    private LongAdder requests = new LongAdder();
+    private LongAdder errors = new LongAdder();
+    private LongAdder shedQueueFull = new LongAdder();
+    private LongAdder shedInFlight = new LongAdder();
+    private LongAdder reapedIdle = new LongAdder();
+    private LongAdder reapedHandshake = new LongAdder();
+    private long[] acceptSlots = new long[RATE_SECONDS];
+    private long[] acceptSeconds = new long[RATE_SECONDS];
+
+    public ServerMetrics(Map<String, p01Server.ClientSession> sessions, List<BlockingQueue<p01Server.MathTask>> taskQueues,
+            ExpressionCache cache, ResultMemo memo, AuditLog auditLog) {
+        this.sessions = sessions;
+        this.taskQueues = taskQueues;
+        this.cache = cache;
+        this.memo = memo;
+        this.auditLog = auditLog;
+    }
+
+    // Makes the metrics visible to JMX clients. The server runs fine without it if that fails
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("p01Server:type=Metrics"));
+        } catch (Exception e) {
+            System.err.println("Could not register the metrics MBean: " + e.getMessage());
+        }
+    }
+
+    public synchronized void connectionAccepted() {
+        accepted.increment();
+        long second = System.currentTimeMillis() / 1000;
+        int slot = (int) (second % RATE_SECONDS);
+        if (acceptSeconds[slot] != second) {
+            acceptSeconds[slot] = second;
+            acceptSlots[slot] = 0;
+        }
+        acceptSlots[slot]++;
+    }
+
+    // Counts a request of the given session (which is null for clients that haven't joined)
+    public void requestReceived(p01Server.ClientSession session, int count) {
+        requests.add(count);
+        if (session != null) {
+            session.requests.add(count);
+        }
+    }
+
+    public void errorAnswered(p01Server.ClientSession session, int count) {
+        errors.add(count);
+        if (session != null) {
+            session.errors.add(count);
+        }
+    }
+
+    // Counts a request answered "server busy", because its task queue was full or its client over its limit
+    public void requestShed(p01Server.ClientSession session, boolean queueFull) {
+        (queueFull ? shedQueueFull : shedInFlight).increment();
+        if (session != null) {
+            session.shed.increment();
+        }
+    }
+
+    // Counts a connection closed by the reaper, for not joining in time or for being idle too long
+    public void sessionReaped(boolean handshake) {
+        (handshake ? reapedHandshake : reapedIdle).increment();
+    }
+
+    /*
+     * Records the stages of one answered request from its timestamps (System.nanoTime): when its
+     * bytes were read, when it was queued, taken by a worker, evaluated, and its answer handed off.
+     */
+    public void requestAnswered(long readAt, long queuedAt, long takenAt, long evaluatedAt, long writtenAt) {
+        read.record(queuedAt - readAt);
+        wait.record(takenAt - queuedAt);
+        evaluate.record(evaluatedAt - takenAt);
+        write.record(writtenAt - evaluatedAt);
+        total.record(writtenAt - readAt);
+    }
+
+    /*
+     * The answer to a "10," message: one line of name=value pairs separated by ";". Latencies are
+     * in microseconds, client.* are the counters of the asking client.
+     */
+    public String statsLine(p01Server.ClientSession session) {
+        StringBuilder line = new StringBuilder("10,");
+        line.append("sessions=").append(getActiveSessions());
+        line.append(";accepted=").append(getAcceptedConnections());
+        line.append(";accepts_per_second=").append(format(getAcceptsPerSecond()));
+        line.append(";queued=").append(getQueuedTasks());
+        line.append(";requests=").append(getRequests());
+        line.append(";errors=").append(getErrors());
+        line.append(";shed_queue_full=").append(getShedQueueFull());
+        line.append(";shed_in_flight=").append(getShedInFlight());
+        line.append(";max_queue=").append(getMaxQueue());
+        line.append(";max_in_flight=").append(getMaxInFlight());
+        line.append(";shed_policy=").append(getShedPolicy());
+        line.append(";reaped_idle=").append(getReapedIdle());
+        line.append(";reaped_handshake=").append(getReapedHandshake());
+        line.append(";cache_hits=").append(getCacheHits());
+        line.append(";cache_misses=").append(getCacheMisses());
+        line.append(";cache_evictions=").append(getCacheEvictions());
+        line.append(";memo_hits=").append(getMemoHits());
+        line.append(";dedup_shared=").append(getDedupShared());
+        line.append(";memo_misses=").append(getMemoMisses());
+        line.append(";dedup_percent=").append(format(getDedupPercent()));
+        line.append(";memo_rejected=").append(getMemoRejected());
+        line.append(";memo_evictions=").append(getMemoEvictions());
+        line.append(";memo_entries=").append(getMemoEntries());
+        line.append(";memo_bytes=").append(getMemoBytes());
+        line.append(";audit_dropped=").append(getAuditDropped());
+        appendStage(line, "read", read);
+        appendStage(line, "wait", wait);
+        appendStage(line, "evaluate", evaluate);
+        appendStage(line, "write", write);
+        appendStage(line, "total", total);
+        if (session != null) {
+            line.append(";client.requests=").append(session.requests.sum());
+            line.append(";client.errors=").append(session.errors.sum());
+            line.append(";client.shed=").append(session.shed.sum());
+        }
+        return line.toString();
+    }
+
+    private static void appendStage(StringBuilder line, String name, LatencyHistogram histogram) {
+        line.append(';').append(name).append(".p50=").append(format(micros(histogram, 0.5)));
+        line.append(';').append(name).append(".p99=").append(format(micros(histogram, 0.99)));
+        line.append(';').append(name).append(".max=").append(format(histogram.getMax() / 1000.0));
+    }
+
+    private static String format(double value) {
+        return String.format(java.util.Locale.ROOT, "%.1f", value);
+    }
+
+    private static double micros(LatencyHistogram histogram, double fraction) {
+        return histogram.getPercentile(fraction) / 1000.0;
+    }
+
+    public int getActiveSessions() {
+        return sessions.size();
+    }
+
+    public long getAcceptedConnections() {
+        return accepted.sum();
+    }
+
+    // Average over the last RATE_SECONDS full seconds
+    public synchronized double getAcceptsPerSecond() {
+        long now = System.currentTimeMillis() / 1000;
+        long count = 0;
+        for (int i = 0; i < RATE_SECONDS; i++) {
+            if (acceptSeconds[i] < now && acceptSeconds[i] >= now - RATE_SECONDS) {
+                count += acceptSlots[i];
+            }
+        }
+        return (double) count / RATE_SECONDS;
+    }
+
+    public int getQueuedTasks() {
+        int queued = 0;
+        for (BlockingQueue<p01Server.MathTask> queue : taskQueues) {
+            queued += queue.size();
+        }
+        return queued;
+    }
+
+    public int[] getQueueDepths() {
+        int[] depths = new int[taskQueues.size()];
+        for (int i = 0; i < depths.length; i++) {
+            depths[i] = taskQueues.get(i).size();
+        }
+        return depths;
+    }
+
+    public long getReapedIdle() {
+        return reapedIdle.sum();
+    }
+
+    public long getReapedHandshake() {
+        return reapedHandshake.sum();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public long getShedQueueFull() {
+        return shedQueueFull.sum();
+    }
+
+    public long getShedInFlight() {
+        return shedInFlight.sum();
+    }
+
+    public int getMaxQueue() {
+        return p01Server.maxQueue;
+    }
+
+    public int getMaxInFlight() {
+        return p01Server.maxInFlight;
+    }
+
+    public String getShedPolicy() {
+        return p01Server.shedPolicy;
+    }
+
+    public long getCacheHits() {
+        return cache.getHits();
+    }
+
+    public long getCacheMisses() {
+        return cache.getMisses();
+    }
+
+    public long getCacheEvictions() {
+        return cache.getEvictions();
+    }
+
+    public long getMemoHits() {
+        return memo.getHits();
+    }
+
+    public long getDedupShared() {
+        return memo.getShared();
+    }
+
+    public long getMemoMisses() {
+        return memo.getMisses();
+    }
+
+    // Percentage of expressions answered without evaluating them (memo hits and shared evaluations)
+    public double getDedupPercent() {
+        long saved = memo.getHits() + memo.getShared();
+        long all = saved + memo.getMisses();
+        return all == 0 ? 0 : 100.0 * saved / all;
+    }
+
+    public long getMemoRejected() {
+        return memo.getRejected();
+    }
+
+    public long getMemoEvictions() {
+        return memo.getEvictions();
+    }
+
+    public int getMemoEntries() {
+        return memo.size();
+    }
+
+    public long getMemoBytes() {
+        return memo.getUsedBytes();
+    }
+
+    public long getAuditDropped() {
+        return auditLog == null ? 0 : auditLog.getDropped();
+    }
+
+    public double getReadP50Micros() {
+        return micros(read, 0.5);
+    }
+
+    public double getReadP99Micros() {
+        return micros(read, 0.99);
+    }
+
+    public double getQueueWaitP50Micros() {
+        return micros(wait, 0.5);
+    }
+
+    public double getQueueWaitP99Micros() {
+        return micros(wait, 0.99);
+    }
+
+    public double getEvaluateP50Micros() {
+        return micros(evaluate, 0.5);
+    }
+
+    public double getEvaluateP99Micros() {
+        return micros(evaluate, 0.99);
+    }
+
+    public double getWriteP50Micros() {
+        return micros(write, 0.5);
+    }
+
+    public double getWriteP99Micros() {
+        return micros(write, 0.99);
+    }
+
+    public double getTotalP50Micros() {
+        return micros(total, 0.5);
+    }
+
+    public double getTotalP99Micros() {
+        return micros(total, 0.99);
+    }
+
+    public double getTotalP999Micros() {
+        return micros(total, 0.999);
+    }
+
+    public String[] getClientCounters() {
+        List<String> counters = new ArrayList<>();
+        for (p01Server.ClientSession session : sessions.values()) {
+            counters.add(session.clientId + " requests=" + session.requests.sum() + " errors=" + session.errors.sum()
+                    + " shed=" + session.shed.sum());
+        }
+        return counters.toArray(new String[0]);
+    }
+
+    public void resetLatencies() {
+        read.reset();
+        wait.reset();
+        evaluate.reset();
+        write.reset();
+        total.reset();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * The JMX view of ServerMetrics (JMX finds the attributes of a standard MBean through an interface
+ * named after the class plus "MBean"). Latencies are in microseconds.
+ */
+public interface ServerMetricsMBean {
+    int getActiveSessions();
+
+    long getAcceptedConnections();
+
+    double getAcceptsPerSecond();
+
+    int getQueuedTasks();
+
+    int[] getQueueDepths();
+
+    long getRequests();
+
+    long getErrors();
+
+    // Requests answered "11,Server busy" because their task queue was full
+    long getShedQueueFull();
+
+    // Requests answered "11,Server busy" because their client had too many in flight
+    long getShedInFlight();
+
+    // Joined clients disconnected for sending nothing for --idle-timeout
+    long getReapedIdle();
+
+    // Connections closed for not joining within --handshake-timeout
+    long getReapedHandshake();
+
+    int getMaxQueue();
+
+    int getMaxInFlight();
+
+    String getShedPolicy();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getCacheEvictions();
+
+    long getMemoHits();
+
+    long getDedupShared();
+
+    long getMemoMisses();
+
+    double getDedupPercent();
+
+    long getMemoRejected();
+
+    long getMemoEvictions();
+
+    int getMemoEntries();
+
+    long getMemoBytes();
+
+    // Audit log records dropped because the audit writer fell too far behind
+    long getAuditDropped();
+
+    double getReadP50Micros();
+
+    double getReadP99Micros();
+
+    double getQueueWaitP50Micros();
+
+    double getQueueWaitP99Micros();
+
+    double getEvaluateP50Micros();
+
+    double getEvaluateP99Micros();
+
+    double getWriteP50Micros();
+
+    double getWriteP99Micros();
+
+    double getTotalP50Micros();
+
+    double getTotalP99Micros();
+
+    double getTotalP999Micros();
+
+    // One "<client> requests=<n> errors=<n> shed=<n>" entry per connected client
+    String[] getClientCounters();
+
+    // Forgets every recorded latency, so the percentiles only cover what happens from now on
+    void resetLatencies();
+}
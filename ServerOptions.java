@@ -0,0 +1,48 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * This class was made to keep the command line switches of the server in one place instead of
+ * parsing args all over p01Server.main.
+ *
+ * Every switch is written as --name=value, or just --name for an on/off flag. For example:
+ *   java p01Server --mode=nio --reactors=2 --port=3093
+ * Switches that are not given fall back to the default passed in by the caller.
+ */
+public class ServerOptions {
+    private Map<String, String> values = new HashMap<>();
+
+    public ServerOptions(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + arg + " (switches look like --name=value)");
+            }
+            int equalsLoc = arg.indexOf('=');
+            if (equalsLoc < 0) {
+                values.put(arg.substring(2), "true");
+            } else {
+                values.put(arg.substring(2, equalsLoc), arg.substring(equalsLoc + 1));
+            }
+        }
+    }
+
+    public String getString(String name, String defaultValue) {
+        return values.getOrDefault(name, defaultValue);
+    }
+
+    public int getInt(String name, int defaultValue) {
+        String value = values.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " expects a whole number but was given " + value);
+        }
+    }
+
+    public boolean getFlag(String name) {
+        return Boolean.parseBoolean(values.getOrDefault(name, "false"));
+    }
+}
@@ -0,0 +1,338 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+/*
+ * This class was made for expressions too big to hold as one String (generated ones can be many
+ * megabytes). A "15," line is not collected by LineDecoder. Its bytes are handed to feed as they
+ * are read, and this class lexes, parses (Shunting-Yard, like CompiledExpression.compile) and
+ * calculates them right away: every operator is run (Evaluator.applyExact) as soon as
+ * CompiledExpression would have emitted it. Nothing of the expression is kept except the token
+ * that is still being read, the operators waiting on opStack and the values on the evaluator's
+ * stack, so the memory used depends on how deeply the expression is nested and not on how long
+ * it is. The answer is exactly what "3," gives for the same expression (whole numbers are
+ * calculated exactly, and errors are the same ones at the same char).
+ *
+ * Limits, which are answered with a "4,Error" instead of running out of memory:
+ * - maxLength: the most chars an expression may have ("Expression is too long")
+ * - maxDepth: the most operators waiting on opStack or values on the stack ("Expression is nested
+ *   too deeply"). Parentheses are what makes both grow, and so do numbers written one after
+ *   another without an operator in between ("1 2 3 + +" is valid)
+ * - MAX_TOKEN_CHARS: the longest single number ("Number is too long")
+ *
+ * Explaination of Variables:
+ *
+ * window: The chars that arrived and haven't been lexed yet (see CharWindow). The lexer reads it
+ * with the positions it would have in the whole expression
+ * pending: Bytes read but not decoded yet (a char split between two reads)
+ * depth: How many values are on the evaluator's stack
+ * head: The first chars of the expression, to describe it in the audit log without keeping it
+ * done: Set once the expression has been calculated or has failed, everything after that is skipped
+ */
+public class StreamingExpression {
+    static final int MAX_TOKEN_CHARS = 64 * 1024;
+    private static final int HEAD_CHARS = 40;
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    private int maxLength;
+    private int maxDepth;
+    private CharWindow window = new CharWindow();
+    private ByteBuffer pending = ByteBuffer.allocate(1024);
+    private CharsetDecoder decoder = CHARSET.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private EquationLexer lexer = new EquationLexer(window);
+    private CompiledExpression.OpStack opStack = new CompiledExpression.OpStack();
+    private Evaluator evaluator = new Evaluator();
+    private int depth;
+    private StringBuilder head = new StringBuilder();
+    private boolean done;
+    private int errorCode = EquationErrorHandler.OK;
+    private int errorLoc;
+    private char errorChar;
+
+    public StreamingExpression(int maxLength, int maxDepth) {
+        this.maxLength = maxLength;
+        this.maxDepth = maxDepth;
+    }
+
+    // Takes the next bytes of the expression (all that remain in bytes)
+    public void feed(ByteBuffer bytes) {
+        if (done) {
+            bytes.position(bytes.limit());
+            return;
+        }
+        decode(bytes, false);
+        boolean tooLong = window.length() > maxLength;
+        if (tooLong) {
+            window.truncate(maxLength);
+        }
+        advance(false);
+        if (tooLong && !done) {
+            fail(EquationErrorHandler.EXPRESSION_TOO_LONG, maxLength + 1);
+        }
+    }
+
+    /*
+     * Called at the end of the line. Returns the response: "5,<num>" or "4,Error: ...", the same
+     * as a "3," message with the whole expression would get.
+     */
+    public String finish() {
+        if (!done) {
+            decode(ByteBuffer.allocate(0), true);
+            if (window.length() == 0) {
+                fail(EquationErrorHandler.EXPRESSION_EMPTY, 0);
+            } else {
+                advance(true);
+            }
+        }
+        if (errorCode != EquationErrorHandler.OK) {
+            return EquationErrorHandler.createErrMsg(errorCode, errorLoc, errorChar);
+        }
+        return evaluator.resultResponse();
+    }
+
+    // How much of the expression has been read, in chars
+    public int length() {
+        return window.length();
+    }
+
+    // The start of the expression and its length, for the audit log
+    public String describe() {
+        return window.length() <= HEAD_CHARS ? head.toString()
+                : head + "... (" + window.length() + " chars)";
+    }
+
+    private void decode(ByteBuffer bytes, boolean endOfInput) {
+        if (pending.remaining() < bytes.remaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(pending.position() + bytes.remaining());
+            pending.flip();
+            pending = larger.put(pending);
+        }
+        pending.put(bytes);
+        pending.flip();
+        // No charset this is used with makes more than one char out of a byte
+        CharBuffer chars = window.room(pending.remaining() + 1);
+        int before = chars.position();
+        decoder.decode(pending, chars, endOfInput);
+        if (endOfInput) {
+            decoder.flush(chars);
+        }
+        for (int i = before; i < chars.position() && head.length() < HEAD_CHARS; i++) {
+            head.append(chars.get(i));
+        }
+        window.added(chars.position() - before);
+        pending.compact();
+    }
+
+    /*
+     * Lexes and handles every token that is complete. A token that reaches the end of what has
+     * arrived so far could still go on ("12" may be the start of "123"), so unless the input is
+     * finished it is left for the next call.
+     */
+    private void advance(boolean finished) {
+        while (!done) {
+            int end = window.length();
+            int next = lexer.GetEqLoc();
+            // Whitespace is skipped here (all but its last char, which the lexer has to see at the
+            // very end, see GetNextTok) so a long run of it doesn't pile up in window
+            while (next < end - 1 && isWhitespace(window.charAt(next))) {
+                next++;
+            }
+            boolean unary = lexer.PeekPossibleUnary();
+            lexer.Rewind(next, unary);
+            window.discardBefore(next);
+            if (!finished && next >= end) {
+                return;
+            }
+            lexer.GetNextTok();
+            if (!finished && lexer.GetEqLoc() >= end) {
+                lexer.Rewind(next, unary);
+                if (end - next > MAX_TOKEN_CHARS) {
+                    fail(EquationErrorHandler.NUMBER_TOO_LONG, next + 1);
+                }
+                return;
+            }
+            handle(lexer.PeekTok());
+            if (!done && (opStack.size() > maxDepth || depth > maxDepth)) {
+                fail(EquationErrorHandler.NESTED_TOO_DEEPLY, lexer.GetEqLoc());
+            }
+        }
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\r';
+    }
+
+    // The body of the loop in CompiledExpression.compile, running operators instead of emitting them
+    private void handle(EquationLexer.Token token) {
+        switch (token) {
+            case TOK_ERR:
+                fail(lexer.GetErrorCode(), lexer.GetErrorLoc());
+                errorChar = lexer.GetErrorChar();
+                break;
+            case TOK_NUMBER:
+                pushNumber();
+                break;
+            case TOK_LPAREN:
+                opStack.push(EquationLexer.Token.TOK_LPAREN, lexer.GetEqLoc());
+                break;
+            case TOK_RPAREN:
+                findLParen(lexer.GetEqLoc());
+                break;
+            case TOK_EOF: // The end of the expression (or a NUL char, after which compile stops too)
+                finishProgram();
+                break;
+            default: // An operator (names are not allowed, so TOK_IDENT never comes up)
+                popOpStack(token);
+                opStack.push(token, lexer.GetEqLoc());
+                break;
+        }
+    }
+
+    private void pushNumber() {
+        evaluator.ensureExactDepth(depth + 1);
+        double value = lexer.PeekNumValue();
+        if (lexer.PeekNumIsInteger() && Math.abs(value) >= Evaluator.EXACT_LIMIT) {
+            long exact;
+            try {
+                exact = Long.parseLong(lexer.PeekNum());
+            } catch (NumberFormatException e) {
+                exact = 0; // Too big for a long too, so it stays a double
+            }
+            if (exact != 0) {
+                evaluator.pushLong(depth++, exact);
+                return;
+            }
+        }
+        evaluator.pushDouble(depth++, value);
+    }
+
+    private void findLParen(int rparenLoc) {
+        while (!done && !opStack.isEmpty() && opStack.peek() != EquationLexer.Token.TOK_LPAREN) {
+            runOp(opStack.peek(), opStack.peekLocation());
+            opStack.pop();
+        }
+        if (done) {
+            return;
+        }
+        if (opStack.isEmpty()) {
+            fail(EquationErrorHandler.UNFINISHED_RPAREN, rparenLoc);
+            return;
+        }
+        opStack.pop();
+    }
+
+    private void popOpStack(EquationLexer.Token op) {
+        while (!done && !opStack.isEmpty()
+                && CompiledExpression.getOpPrecedence(opStack.peek()) >= CompiledExpression.getOpPrecedence(op)) {
+            runOp(opStack.peek(), opStack.peekLocation());
+            opStack.pop();
+        }
+    }
+
+    // What emitOp checks in CompiledExpression, then the operator is run right away
+    private void runOp(EquationLexer.Token op, int location) {
+        boolean unary = op == EquationLexer.Token.TOK_POSITIVE || op == EquationLexer.Token.TOK_NEGATIVE;
+        if (depth < (unary ? 1 : 2)) {
+            fail(unary ? EquationErrorHandler.EXPECTED_AN_OPERAND : EquationErrorHandler.EXPECTED_TWO_OPERANDS, location);
+            return;
+        }
+        int status = evaluator.applyExact(op, depth, location);
+        if (status != EquationErrorHandler.OK) {
+            fail(status, evaluator.getErrorLoc());
+        } else if (!unary) {
+            depth--;
+        }
+    }
+
+    // The end of CompiledExpression.compile: the operators left over, then one value must be left
+    private void finishProgram() {
+        while (!done && !opStack.isEmpty()) {
+            if (opStack.peek() == EquationLexer.Token.TOK_LPAREN) {
+                fail(EquationErrorHandler.UNFINISHED_LPAREN, opStack.peekLocation());
+            } else {
+                runOp(opStack.peek(), opStack.peekLocation());
+            }
+            opStack.pop();
+        }
+        if (done) {
+            return;
+        }
+        if (depth != 1) {
+            fail(EquationErrorHandler.UNFINISHED_EXPRESSION, 0);
+            return;
+        }
+        evaluator.takeExactResult();
+        done = true;
+    }
+
+    private void fail(int code, int location) {
+        errorCode = code;
+        errorLoc = location;
+        done = true;
+        window.discardBefore(window.length()); // Nothing of it is needed anymore
+    }
+
+    /*
+     * The part of the expression that is still needed, as a CharSequence that is indexed like
+     * the whole expression (charAt(i) is the i-th char since the start, as long as it hasn't been
+     * discarded), which is what lets EquationLexer work on it unchanged.
+     *
+     * chars[0] is the char at position first, and count chars are filled in. Everything before
+     * position live has been discarded, but is only actually dropped (by moving the rest to the
+     * front) when room is needed, so discarding token after token doesn't copy anything.
+     */
+    private static class CharWindow implements CharSequence {
+        private char[] chars = new char[1024];
+        private int first;
+        private int count;
+        private int live;
+
+        public int length() {
+            return first + count;
+        }
+
+        public char charAt(int index) {
+            return chars[index - first];
+        }
+
+        public CharSequence subSequence(int from, int to) {
+            return new String(chars, from - first, to - from);
+        }
+
+        public String toString() {
+            return new String(chars, live - first, first + count - live);
+        }
+
+        // A buffer to decode at least size chars into, to be followed by added
+        CharBuffer room(int size) {
+            int drop = live - first;
+            if (drop > 0) {
+                System.arraycopy(chars, drop, chars, 0, count - drop);
+                count -= drop;
+                first = live;
+            }
+            if (count + size > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, count + size));
+            }
+            return CharBuffer.wrap(chars, count, chars.length - count);
+        }
+
+        void added(int size) {
+            count += size;
+        }
+
+        // Marks every char before position as no longer needed
+        void discardBefore(int position) {
+            live = Math.max(live, position);
+        }
+
+        // Drops every char from position on (they are never lexed)
+        void truncate(int position) {
+            count = Math.max(live, position) - first;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * This class was made to notice connections that went quiet (see p01Server's --idle-timeout)
+ * without looking at every connection every time. It is a hashed timer wheel: time is cut into
+ * ticks of TICK_NANOS, and every watched thing sits in the slot of the tick its deadline falls in.
+ * Each tick, the one thread of the wheel only looks at the things in that tick's slot, so the
+ * cost grows with how many deadlines come due and not with how many things are watched.
+ *
+ * Deadlines aren't moved when they change (a client sending something would otherwise have to
+ * touch the wheel on every read). Instead, when a slot comes up, each thing is asked for its
+ * deadline again: if that has passed it expires, otherwise it goes into the slot of its new
+ * deadline. A busy connection is looked at once per timeout, an idle one once in total.
+ *
+ * Deadlines further away than one turn of the wheel (SLOTS ticks) come around in their slot
+ * before they are due and are simply put back.
+ *
+ * Explaination of Variables:
+ *
+ * added: Things handed to watch by other threads, moved into the slots by the wheel's thread
+ * slots: What is due in each tick (modulo SLOTS). Only touched by the wheel's thread
+ * tick: The tick the wheel's thread is at
+ */
+public class TimerWheel implements Runnable {
+    /*
+     * Something with a deadline. Both methods are called by the wheel's thread, so they have to
+     * be thread-safe with whatever else uses the object.
+     */
+    public interface Timeout {
+        // The System.nanoTime at which it expires, or Long.MAX_VALUE to stop watching it
+        long deadline();
+
+        // Called once the deadline has passed. The thing isn't watched anymore after that
+        void expire();
+    }
+
+    static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int SLOTS = 1024; // One turn is about 100 seconds
+
+    private ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private List<List<Timeout>> slots = new ArrayList<>();
+    private List<Timeout> due = new ArrayList<>();
+    private long start = System.nanoTime();
+    private long tick;
+
+    public TimerWheel() {
+        for (int i = 0; i < SLOTS; i++) {
+            slots.add(new ArrayList<>());
+        }
+    }
+
+    // Starts the wheel's thread (a daemon)
+    public void start(String name) {
+        Thread thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Can be called from any thread
+    public void watch(Timeout timeout) {
+        added.add(timeout);
+    }
+
+    public void run() {
+        while (true) {
+            long next = start + (tick + 1) * TICK_NANOS;
+            long now;
+            while ((now = System.nanoTime()) < next) {
+                LockSupport.parkNanos(this, next - now);
+            }
+            tick++;
+            Timeout timeout;
+            while ((timeout = added.poll()) != null) {
+                schedule(timeout, timeout.deadline());
+            }
+            // Swapped out so that things put back into the same slot wait for the next turn
+            List<Timeout> slot = slots.get((int) (tick % SLOTS));
+            slots.set((int) (tick % SLOTS), due);
+            due = slot;
+            for (Timeout entry : due) {
+                long deadline = entry.deadline();
+                if (deadline - now <= 0) {
+                    try {
+                        entry.expire();
+                    } catch (RuntimeException e) {
+                        System.err.println("Timeout failed: " + e);
+                    }
+                } else {
+                    schedule(entry, deadline);
+                }
+            }
+            due.clear();
+        }
+    }
+
+    private void schedule(Timeout timeout, long deadline) {
+        if (deadline == Long.MAX_VALUE) {
+            return;
+        }
+        // Rounded up, and never into the slot being worked on (or one already passed)
+        long dueTick = Math.max(tick + 1, (deadline - start + TICK_NANOS - 1) / TICK_NANOS);
+        slots.get((int) (dueTick % SLOTS)).add(timeout);
+    }
+}
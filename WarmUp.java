@@ -0,0 +1,154 @@
+import java.io.IOException;
+import java.lang.management.CompilationMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * This class was made so that the first clients after a start don't pay for the JVM still
+ * interpreting (and then compiling) the request path. Before the server opens its port (see
+ * p01Server's --warmup), run() pushes a corpus of expressions through the same code a request goes
+ * through, over and over, until the JIT compiler has stopped finding new work:
+ * - decoding: every expression is read as a "3," line by LineDecoder and as an EVAL frame by
+ *   BinaryCodec.FrameDecoder
+ * - the lexer and the Shunting-Yard algorithm (CompiledExpression.compile, on every round, the way
+ *   a new expression is compiled)
+ * - the evaluator: the fresh programs are interpreted, and the same expressions taken from an
+ *   ExpressionCache run often enough to be turned into bytecode (see BytecodeCompiler)
+ * - encoding: the answer as a text response into a ResponseBuffer and as a RESULT or ERROR frame
+ * All of this uses a cache and buffers of its own, so the server's caches, memo and metrics start
+ * out as empty as without a warm-up.
+ *
+ * "Stopped finding new work" is measured with the JVM's CompilationMXBean: every CHECK_MILLIS the
+ * time spent compiling since the last check is looked at, and once it has been below
+ * SETTLED_PERCENT of the time for SETTLED_CHECKS checks in a row the warm-up ends. It also ends
+ * after maxSeconds no matter what (and runs for that long on a JVM that can't tell).
+ *
+ * Explaination of Variables:
+ *
+ * corpus: The expressions to run. BUILT_IN_CORPUS unless --warmup-corpus names a file with one
+ * expression per line
+ * blackhole: Something every round adds to so the JIT can't drop the work as unused
+ */
+public class WarmUp {
+    private static final long CHECK_MILLIS = 200;
+    private static final int SETTLED_PERCENT = 2;
+    private static final int SETTLED_CHECKS = 3;
+
+    // A bit of everything: short, long, nested, unary signs, exact whole numbers, decimals, errors
+    static final String[] BUILT_IN_CORPUS = {
+            "1+2", "2*(3+4)", "10/4", "7%3", "2^10", "1.5*2", "0.1+0.2", "-(2-3)", "+(-3)", "--5", "-+-+2",
+            "(1+2)*(3+4)/(5-6)", "((((((1+2))))))*3", "2^0.5", "3000000000*3", "2^62+1", "9007199254740993-1",
+            "12345678901234567890/5", "-7%4", "100-99.5*2+3/4^2", "(1.25+2.5)*(8-3)%7",
+            "1+2*3-4/5+6%7-8^2+9*(10-11)/12+13-14*15+16/17-18+19*20",
+            "((1+2)*(3+(4*(5+(6*(7+(8*(9+10))))))))",
+            "1/0", "5%0", "abc", "", "   ", "(1+2", "1+2)", "1..2", ".", "1 2", "2*", "*2",
+    };
+
+    private String[] corpus;
+    private long blackhole;
+
+    public WarmUp(String[] corpus) {
+        this.corpus = corpus;
+    }
+
+    // The corpus in file, one expression per line (blank lines are kept, they are expressions too)
+    public static String[] readCorpus(String file) throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(file));
+        return lines.toArray(new String[0]);
+    }
+
+    /*
+     * Runs rounds over the corpus until compiling has settled or maxSeconds have passed, and
+     * returns how many rounds it took.
+     */
+    public long run(int maxSeconds) {
+        CompilationMXBean jit = ManagementFactory.getCompilationMXBean();
+        boolean measurable = jit != null && jit.isCompilationTimeMonitoringSupported();
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(maxSeconds);
+        long nextCheck = start + TimeUnit.MILLISECONDS.toNanos(CHECK_MILLIS);
+        long compiledMillis = measurable ? jit.getTotalCompilationTime() : 0;
+        int settledChecks = 0;
+        long rounds = 0;
+
+        ExpressionCache cache = new ExpressionCache(16 * 1024 * 1024);
+        ResponseBuffer output = new ResponseBuffer();
+        byte[] lines = linesOf(corpus);
+        byte[] frames = framesOf(corpus);
+        LineDecoder lineDecoder = new LineDecoder();
+        BinaryCodec.FrameDecoder frameDecoder = new BinaryCodec.FrameDecoder();
+        List<String> decoded = new ArrayList<>(corpus.length);
+
+        while (true) {
+            rounds++;
+            decoded.clear();
+            lineDecoder.feed(ByteBuffer.wrap(lines), line -> decoded.add(line.substring(2)));
+            frameDecoder.feed(ByteBuffer.wrap(frames), frame -> {
+                blackhole += frame.payload.length;
+                return true;
+            });
+            for (int i = 0; i < decoded.size(); i++) {
+                String expression = decoded.get(i);
+                // A new expression: lexer, Shunting-Yard and the interpreter
+                String response = CompiledExpression.compile(expression).evaluate();
+                // A repeated one: cached, and turned into bytecode after enough rounds
+                ResultMemo.Outcome outcome = ResultMemo.Outcome.of(cache.get(expression));
+                blackhole += response.length() + outcome.response.length();
+                if (output.append(outcome.response, System.lineSeparator())) {
+                    output.release(output.take());
+                }
+                byte[] frame = outcome.status == EquationErrorHandler.OK
+                        ? BinaryCodec.encodeResult(i, outcome.value)
+                        : BinaryCodec.encodeError(i, outcome.status, outcome.errorLoc);
+                blackhole += frame.length;
+            }
+
+            long now = System.nanoTime();
+            if (now - end >= 0) {
+                return rounds;
+            }
+            if (measurable && now - nextCheck >= 0) {
+                long compiled = jit.getTotalCompilationTime();
+                long elapsedMillis = CHECK_MILLIS + TimeUnit.NANOSECONDS.toMillis(now - nextCheck);
+                settledChecks = (compiled - compiledMillis) * 100 < SETTLED_PERCENT * elapsedMillis ? settledChecks + 1 : 0;
+                if (settledChecks == SETTLED_CHECKS) {
+                    return rounds;
+                }
+                compiledMillis = compiled;
+                nextCheck = now + TimeUnit.MILLISECONDS.toNanos(CHECK_MILLIS);
+            }
+        }
+    }
+
+    // Kept so the JIT can't tell the work is unused
+    public long getBlackhole() {
+        return blackhole;
+    }
+
+    private static byte[] linesOf(String[] expressions) {
+        StringBuilder lines = new StringBuilder();
+        for (String expression : expressions) {
+            lines.append("3,").append(expression).append('\n');
+        }
+        return lines.toString().getBytes();
+    }
+
+    private static byte[] framesOf(String[] expressions) {
+        List<byte[]> encoded = new ArrayList<>();
+        int length = 0;
+        for (int i = 0; i < expressions.length; i++) {
+            encoded.add(BinaryCodec.encodeEval(i, expressions[i]));
+            length += encoded.get(i).length;
+        }
+        ByteBuffer frames = ByteBuffer.allocate(length);
+        for (byte[] frame : encoded) {
+            frames.put(frame);
+        }
+        return frames.array();
+    }
+}
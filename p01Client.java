@@ -1,4 +1,6 @@
 import java.net.*;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 import java.io.*;
 
@@ -6,7 +8,22 @@ public class p01Client {
     private static final int PORT = 3092;
     private static final String address = "localhost";
 
+    /*
+     * Without any switches the client is interactive. Switches (see ServerOptions):
+     * --host=<host> --port=<n>   Server to connect to (default localhost:3092)
+     * --batch=<file>             Evaluate every line of file ("-" for stdin) using "9," batches
+     *                            and print one answer per line, then quit. Needs --name
+     * --name=<name>              Name to join as in batch mode
+     * --batch-size=<n>           Expressions per batch (default 1000)
+     */
     public static void main(String[] args) throws UnknownHostException, IOException {
+        ServerOptions options = new ServerOptions(args);
+        String host = options.getString("host", address);
+        int port = options.getInt("port", PORT);
+        if (options.getString("batch", null) != null) {
+            runBatch(options, host, port);
+            return;
+        }
         Socket clientSocket;
         Scanner userInput = new Scanner(System.in);
         // userName is meant to store the name of the user, while userEquation stores
@@ -17,7 +34,7 @@ public class p01Client {
         PrintWriter toServer;
 
         System.out.println("Attempting to connect to the UTD Math Server");
-        clientSocket = new Socket(address, PORT);
+        clientSocket = new Socket(host, port);
 
         fromServer = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
         toServer = new PrintWriter(new OutputStreamWriter(clientSocket.getOutputStream()), true);
@@ -74,6 +91,8 @@ public class p01Client {
                 System.out.println("Answer: " + serverResponse.substring(2));
             } else if (serverResponse.startsWith("4,")) {
                 System.out.println(formatErrMsg(serverResponse.substring(2), userEquation));
+            } else if (serverResponse.startsWith("11,")) {
+                System.out.println("The server is too busy right now, try again in a moment");
             } else {
                 System.out.println("Server sent back an unexpected message " + serverResponse);
             }
@@ -81,6 +100,90 @@ public class p01Client {
         closeResources(userInput, clientSocket);
     }
 
+    /*
+     * Sends the lines of the --batch file to the server in "9," batches and prints the answer to
+     * each line, in order: the number, or the error message followed by the line it belongs to.
+     */
+    private static void runBatch(ServerOptions options, String host, int port) throws IOException {
+        String file = options.getString("batch", "-");
+        String userName = options.getString("name", null);
+        int batchSize = Math.max(1, options.getInt("batch-size", 1000));
+        if (userName == null) {
+            System.err.println("--batch needs a --name to join the server with");
+            return;
+        }
+        BufferedReader input = new BufferedReader(file.equals("-") ? new InputStreamReader(System.in) : new FileReader(file));
+        try (Socket socket = new Socket(host, port)) {
+            BufferedReader fromServer = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter toServer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())));
+            toServer.println("0," + userName);
+            toServer.flush();
+            String serverResponse = fromServer.readLine();
+            if (serverResponse == null || !serverResponse.equals("0," + userName + " has joined the session.")) {
+                System.err.println("Could not join the server: " + serverResponse);
+                return;
+            }
+            List<String> batch = new ArrayList<>(batchSize);
+            String line;
+            boolean more = true;
+            while (more) {
+                line = input.readLine();
+                if (line != null) {
+                    batch.add(line.trim());
+                }
+                more = line != null;
+                if (batch.size() == batchSize || (!more && !batch.isEmpty())) {
+                    if (!sendBatch(batch, toServer, fromServer)) {
+                        return;
+                    }
+                    batch.clear();
+                }
+            }
+            toServer.println("1,");
+            toServer.flush();
+        } finally {
+            input.close();
+        }
+    }
+
+    // Returns false (after saying why) if the batch wasn't answered and the client should stop
+    private static boolean sendBatch(List<String> batch, PrintWriter toServer, BufferedReader fromServer)
+            throws IOException {
+        toServer.println("9," + batch.size());
+        for (String expression : batch) {
+            toServer.println(expression);
+        }
+        toServer.flush();
+        String header = fromServer.readLine();
+        if (header == null) {
+            System.err.println("Lost connection to server. Closing client");
+            return false;
+        } else if (header.startsWith("4,")) {
+            // The server takes at most --max-batch lines in one batch and answers a bigger one with an error
+            System.err.println("The server rejected a batch of " + batch.size() + " lines: " + header.substring(2)
+                    + " (try a smaller --batch-size)");
+            return false;
+        } else if (header.startsWith("11,")) {
+            System.err.println("The server is too busy right now, try again in a moment");
+            return false;
+        } else if (!header.equals("9," + batch.size())) {
+            System.err.println("Server sent back an unexpected message " + header);
+            return false;
+        }
+        for (String expression : batch) {
+            String serverResponse = fromServer.readLine();
+            if (serverResponse == null) {
+                System.err.println("Lost connection to server. Closing client");
+                return false;
+            } else if (serverResponse.startsWith("5,")) {
+                System.out.println(serverResponse.substring(2));
+            } else {
+                System.out.println(serverResponse.substring(2) + ": " + expression);
+            }
+        }
+        return true;
+    }
+
     // Close every connection before ending the program
     private static void closeResources(Scanner scanner, Socket socket) {
         scanner.close();
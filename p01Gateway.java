@@ -0,0 +1,368 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * This class was made to spread clients over several p01Server processes (shards) while they all
+ * keep connecting to one address. Clients connect to the gateway exactly as they would to a
+ * server. The gateway waits for the "0,<name>" message, picks the backend the name belongs to on a
+ * consistent hash ring (see HashRing), connects to it, passes the "0," message on and from then on
+ * only copies bytes in both directions. Everything after joining (pipelining, the binary
+ * protocol, stats, formulas) is handled by that backend as if the client was connected to it.
+ *
+ *   java p01Server --port=3101 --join=localhost:3099
+ *   java p01Server --port=3102 --join=localhost:3099
+ *   java p01Gateway --port=3092 --admin-port=3099
+ *
+ * Names are unique over all shards: the gateway claims a name before passing the "0," message on,
+ * so a second client with the same name is answered "2,Name already taken" even if the ring has
+ * changed since the first one joined and the name would now go to a different backend. The claim
+ * is given up when the client leaves, or when the backend itself answers "2," (a client connected
+ * to it directly has the name). Either way the client can try another name, like with a server.
+ *
+ * Backends join and leave through the admin port, one command per line:
+ *   join <host>:<port>    put a backend on the ring (p01Server --join=<gateway>:<admin port> does this)
+ *   leave <host>:<port>   take it off the ring (p01Server does this when it shuts down)
+ *   list                  one line per backend with its number of sessions, then "end"
+ * A backend that leaves only gets no new clients. Sessions already on it, and on every other
+ * backend, stay connected. If a backend can't be reached when a client joins, or doesn't answer its
+ * "0," line within CONNECT_TIMEOUT_MILLIS, the client goes to the next backend on the ring and the
+ * backend is marked down for DOWN_MILLIS. It stays on the ring, but while it is down joining clients
+ * try it only after every backend that is up, so a short hiccup (a GC pause, a restart) doesn't take
+ * a shard out of service for good. The first client that gets through to it marks it up again.
+ *
+ * Every client and every admin connection is served by virtual threads (two per client while it
+ * is connected, one for each direction), so the gateway scales like --mode=virtual does.
+ *
+ * Switches (see ServerOptions):
+ * --port=<n>             Port clients connect to (default 3092)
+ * --admin-port=<n>       Port for join/leave/list commands (default 3099)
+ * --backends=<h:p>,...   Backends to start with (default none, they can join later)
+ * --handshake-timeout=<s> Seconds a client has to join (default 10, 0 for no limit)
+ *
+ * Explaination of Variables:
+ *
+ * ring: Which backend a name goes to
+ * names: Every name claimed by a connected client
+ * sessionCounts: Clients currently relayed to each backend, for "list"
+ * downUntil: Backends that failed a connect or join, and until when (System.currentTimeMillis) they
+ * are tried last
+ */
+public class p01Gateway {
+    private static final int DEFAULT_PORT = 3092;
+    private static final int DEFAULT_ADMIN_PORT = 3099;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final long DOWN_MILLIS = 10000;
+
+    private static HashRing ring = new HashRing();
+    private static Map<String, Boolean> names = new ConcurrentHashMap<>();
+    private static Map<String, AtomicInteger> sessionCounts = new ConcurrentHashMap<>();
+    private static Map<String, Long> downUntil = new ConcurrentHashMap<>();
+    private static int handshakeTimeoutMillis;
+
+    public static void main(String[] args) throws IOException {
+        ServerOptions options = new ServerOptions(args);
+        int port = options.getInt("port", DEFAULT_PORT);
+        int adminPort = options.getInt("admin-port", DEFAULT_ADMIN_PORT);
+        handshakeTimeoutMillis = (int) TimeUnit.SECONDS.toMillis(options.getInt("handshake-timeout", 10));
+        for (String backend : options.getString("backends", "").split(",")) {
+            if (!backend.isBlank()) {
+                join(backend.trim());
+            }
+        }
+
+        ServerSocket adminSocket = new ServerSocket(adminPort);
+        Thread.ofVirtual().name("gateway-admin").start(() -> acceptLoop(adminSocket, p01Gateway::serveAdmin));
+        ServerSocket clientSocket = new ServerSocket(port);
+        System.out.println("Gateway is running on port " + port + " (admin port " + adminPort + ", "
+                + ring.getBackends().size() + " backends)");
+        acceptLoop(clientSocket, p01Gateway::serveClient);
+    }
+
+    private interface SocketHandler {
+        void serve(Socket socket) throws IOException;
+    }
+
+    private static void acceptLoop(ServerSocket serverSocket, SocketHandler handler) {
+        while (true) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread.ofVirtual().start(() -> {
+                    try (socket) {
+                        handler.serve(socket);
+                    } catch (IOException e) {
+                        // The client went away, nothing else to clean up
+                    }
+                });
+            } catch (IOException e) {
+                System.err.println("Error accepting connection: " + e.getMessage());
+            }
+        }
+    }
+
+    static boolean join(String backend) {
+        downUntil.remove(backend); // A backend that (re)joins is up
+        if (!ring.add(backend)) {
+            return false;
+        }
+        sessionCounts.putIfAbsent(backend, new AtomicInteger());
+        System.out.println("Backend " + backend + " joined (" + ring.getBackends().size() + " backends)");
+        return true;
+    }
+
+    static boolean leave(String backend, String reason) {
+        downUntil.remove(backend);
+        if (!ring.remove(backend)) {
+            return false;
+        }
+        System.out.println("Backend " + backend + " " + reason + " (" + ring.getBackends().size() + " backends)");
+        return true;
+    }
+
+    // Has joining clients try the backend last for the next DOWN_MILLIS
+    static void markDown(String backend, String reason) {
+        long now = System.currentTimeMillis();
+        Long until = downUntil.put(backend, now + DOWN_MILLIS);
+        if (until == null || until <= now) {
+            System.out.println("Backend " + backend + " " + reason + ", marked down for " + DOWN_MILLIS + "ms");
+        }
+    }
+
+    static boolean isDown(String backend) {
+        Long until = downUntil.get(backend);
+        return until != null && until > System.currentTimeMillis();
+    }
+
+    static void markUp(String backend) {
+        if (downUntil.remove(backend) != null) {
+            System.out.println("Backend " + backend + " is up again");
+        }
+    }
+
+    /*
+     * Reads the client's lines until it has joined a backend, then relays bytes until either side
+     * closes. Lines before the "0," message are ignored (a server ignores them too).
+     */
+    private static void serveClient(Socket client) throws IOException {
+        long deadline = System.currentTimeMillis() + handshakeTimeoutMillis;
+        client.setTcpNoDelay(true);
+        InputStream fromClient = client.getInputStream();
+        OutputStream toClient = client.getOutputStream();
+        Handshake handshake = new Handshake();
+        LineDecoder decoder = new LineDecoder();
+        byte[] buffer = new byte[8192];
+        String claimed = null;
+        Set<String> tried = new HashSet<>(); // Backends that failed this client, not tried again for it
+        try {
+            while (true) {
+                int read;
+                try {
+                    if (handshakeTimeoutMillis > 0) {
+                        client.setSoTimeout((int) Math.max(1, deadline - System.currentTimeMillis()));
+                    }
+                    read = fromClient.read(buffer);
+                } catch (SocketTimeoutException e) {
+                    return; // Didn't join in time
+                }
+                if (read < 0) {
+                    return;
+                }
+                ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, read);
+                while (bytes.hasRemaining()) {
+                    handshake.line = null;
+                    decoder.feed(bytes, handshake);
+                    if (handshake.line == null) {
+                        break; // The rest of the line hasn't arrived yet
+                    }
+                    String name = handshake.line.substring(2).split(";", -1)[0].trim();
+                    if (names.putIfAbsent(name, Boolean.TRUE) != null) {
+                        toClient.write(("2,Name already taken" + System.lineSeparator()).getBytes());
+                        continue;
+                    }
+                    claimed = name;
+                    // A line ended by "\r" is passed on with "\r", so that if a "\n" follows (now or in
+                    // the next read) the backend drops it just like it would have without the gateway
+                    int end = bytes.position();
+                    String terminator = end > 0 && buffer[end - 1] == '\r' ? "\r" : "\n";
+                    Boolean joined = null;
+                    while (joined == null) { // Until a backend answers the "0," line
+                        Route route = connect(name, tried);
+                        if (route == null) {
+                            toClient.write(("4,Error: No server available" + System.lineSeparator()).getBytes());
+                            return;
+                        }
+                        try (Socket backend = route.socket) {
+                            joined = joinBackend(backend, handshake.line + terminator, toClient);
+                            markUp(route.backend);
+                            if (joined) {
+                                client.setSoTimeout(0);
+                                // Whatever the client sent after its "0," line is already for the backend
+                                backend.getOutputStream().write(buffer, end, bytes.remaining());
+                                relay(client, route);
+                                return;
+                            }
+                        } catch (SocketTimeoutException e) {
+                            // Nothing was passed on to the client yet, so the next backend can take it
+                            tried.add(route.backend);
+                            markDown(route.backend, "didn't answer a join within " + CONNECT_TIMEOUT_MILLIS + "ms");
+                        }
+                    }
+                    names.remove(claimed); // The backend said the name is taken
+                    claimed = null;
+                }
+            }
+        } finally {
+            if (claimed != null) {
+                names.remove(claimed);
+            }
+        }
+    }
+
+    // Picks up the client's "0," line; the decoder stops right after it
+    private static class Handshake implements LineDecoder.LineHandler {
+        String line;
+
+        public boolean onLine(String text) {
+            if (text.startsWith("0,")) {
+                line = text;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private static class Route {
+        String backend; // As written on the ring
+        Socket socket;
+
+        Route(String backend, Socket socket) {
+            this.backend = backend;
+            this.socket = socket;
+        }
+    }
+
+    /*
+     * Connects to the backend the name belongs to, or the next one on the ring if that fails.
+     * Backends that are down come after all the others, and the ones in tried are skipped.
+     */
+    private static Route connect(String name, Set<String> tried) {
+        List<String> order = new ArrayList<>();
+        List<String> down = new ArrayList<>();
+        for (String backend : ring.lookup(name)) {
+            if (!tried.contains(backend)) {
+                (isDown(backend) ? down : order).add(backend);
+            }
+        }
+        order.addAll(down);
+        for (String backend : order) {
+            int colon = backend.lastIndexOf(':');
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(backend.substring(0, colon),
+                        Integer.parseInt(backend.substring(colon + 1))), CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                return new Route(backend, socket);
+            } catch (IOException | RuntimeException e) {
+                try {
+                    socket.close();
+                } catch (IOException closeError) {
+                    // Nothing to do
+                }
+                tried.add(backend);
+                markDown(backend, "can't be reached (" + e.getMessage() + ")");
+            }
+        }
+        return null;
+    }
+
+    /*
+     * Sends the "0," line to the backend and passes its answer on to the client. Returns true if
+     * the client joined, false if the backend answered "2," (the name is taken there). Throws
+     * SocketTimeoutException if the backend doesn't answer within CONNECT_TIMEOUT_MILLIS, in which
+     * case nothing has been sent to the client.
+     */
+    private static boolean joinBackend(Socket backend, String joinLine, OutputStream toClient) throws IOException {
+        backend.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+        backend.getOutputStream().write(joinLine.getBytes());
+        InputStream fromBackend = backend.getInputStream();
+        ByteArrayOutputStream answer = new ByteArrayOutputStream();
+        int b;
+        while ((b = fromBackend.read()) >= 0) { // One byte at a time so nothing after the line is taken
+            answer.write(b);
+            if (b == '\n') {
+                break;
+            }
+        }
+        backend.setSoTimeout(0); // The relay waits on the backend for as long as the session lasts
+        toClient.write(answer.toByteArray());
+        return answer.toString().startsWith("0,");
+    }
+
+    // Copies bytes both ways until one side closes, then closes both
+    private static void relay(Socket client, Route route) {
+        AtomicInteger count = sessionCounts.computeIfAbsent(route.backend, key -> new AtomicInteger());
+        count.incrementAndGet();
+        try {
+            Thread upstream = Thread.ofVirtual().start(() -> copy(client, route.socket));
+            copy(route.socket, client);
+            upstream.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            count.decrementAndGet();
+        }
+    }
+
+    private static void copy(Socket from, Socket to) {
+        byte[] buffer = new byte[8192];
+        try {
+            InputStream in = from.getInputStream();
+            OutputStream out = to.getOutputStream();
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            // One side went away, which ends the session either way
+        } finally {
+            // Closing both wakes the copy going the other way
+            try {
+                from.close();
+                to.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    private static void serveAdmin(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] command = line.trim().split("\\s+");
+            if (command.length == 2 && command[0].equals("join")) {
+                out.println(join(command[1]) ? "ok" : "already joined");
+            } else if (command.length == 2 && command[0].equals("leave")) {
+                out.println(leave(command[1], "left") ? "ok" : "not joined");
+            } else if (command.length == 1 && command[0].equals("list")) {
+                List<String> backends = ring.getBackends();
+                for (String backend : backends) {
+                    out.println(backend + " sessions=" + sessionCounts.getOrDefault(backend, new AtomicInteger()).get()
+                            + (isDown(backend) ? " down" : ""));
+                }
+                out.println("end");
+            } else {
+                out.println("unknown command (expected join <host>:<port>, leave <host>:<port> or list)");
+            }
+        }
+    }
+}
@@ -1,41 +1,216 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import java.util.*;
 
 public class p01Server {
-    private static final int PORT = 3092; // Port number for the server to listen on
-    // ThreadPool to handle multiple client connections
-    private static ExecutorService pool = Executors.newFixedThreadPool(10);
+    private static final int DEFAULT_PORT = 3092; // Port number for the server to listen on unless --port is given
+    // ThreadPool to handle multiple client connections (replaced by a virtual thread
+    // executor when --mode=virtual is given)
+    private static ExecutorService pool;
     // Thread safe hashmap (Concurrent Hashmap) for handling multithreaded client
     // requests
     private static Map<String, ClientSession> sessions = new ConcurrentHashMap<>();
-    // BlockingQueue for tasks awaiting processing
-    private static BlockingQueue<MathTask> taskQueue = new LinkedBlockingQueue<>();
+    /*
+     * One BlockingQueue of tasks awaiting processing per math worker thread. Every client is
+     * given one of these queues when it joins and all of its tasks go there, so a client's
+     * answers come back in the order it asked for them even though the workers run in parallel.
+     * Tasks of different clients can finish in any order.
+     */
+    private static List<BlockingQueue<MathTask>> taskQueues = new ArrayList<>();
+    // Used to hand out the task queues to joining clients round robin
+    private static AtomicInteger nextWorker = new AtomicInteger();
+    // Protocol extensions a client can ask for in its "0," message (see handleHandshake)
+    private static final List<String> SUPPORTED_EXTENSIONS = List.of("pipeline", "binary");
+    // Longest request id accepted in a "6," message
+    private static final int MAX_REQUEST_ID_LENGTH = 32;
+    // Batches with at least this many expressions are split over batchPool
+    private static final int BATCH_SPLIT_SIZE = 2048;
+    // Most expressions accepted in one "9," batch, set by --max-batch
+    private static int maxBatch;
+    // Limits of a streamed ("15,") expression, see StreamingExpression
+    private static int maxStreamLength;
+    private static int maxStreamDepth;
+    private static final byte[] STREAM_PREFIX = "15,".getBytes(StandardCharsets.US_ASCII);
+    // Threads that help the math workers with large batches
+    private static ForkJoinPool batchPool;
+    // Compiled form of recently evaluated expressions, sized by --cache-bytes
+    private static ExpressionCache expressionCache;
+    // Answers shared between workers evaluating the same expression and kept for later, see ResultMemo
+    private static ResultMemo resultMemo;
+    // Counters and stage latencies, readable over JMX and with a "10," message
+    static ServerMetrics metrics;
+    // Admission control (see submit): the capacity of each task queue, the most tasks one
+    // client may have queued or running, and what to do with a request over either limit
+    static int maxQueue;
+    static int maxInFlight;
+    // Answers waiting for a client that make the server stop reading from it, see ResponseBuffer
+    static int maxOutputBytes;
+    static String shedPolicy;
+    static final List<String> SHED_POLICIES = List.of("newest", "client", "block");
+    // Formulas registered with "13,global,...", usable by every client (see handleRegister)
+    private static Map<String, CompiledExpression> globalFormulas = new ConcurrentHashMap<>();
+    private static final int MAX_GLOBAL_FORMULAS = 10000;
+    private static final int MAX_SESSION_FORMULAS = 1000;
+    private static final int MAX_PARAMETERS = 64;
+    // Record of joins, quits and calculations kept on disk, null with --no-audit
+    private static AuditLog auditLog;
+    // How long a client may take to join and how long a joined client may stay silent, in
+    // nanoseconds (0 for no limit), and the wheel that closes connections over either (see
+    // Connection.deadline). reaper is null if neither is limited
+    static long handshakeTimeoutNanos;
+    static long idleTimeoutNanos;
+    private static TimerWheel reaper;
+    // Gateway admin address from --join and how the gateway reaches this server, null without --join
+    private static String gateway;
+    private static String advertised;
 
+    /*
+     * Switches (see ServerOptions):
+     * --port=<n>       Port to listen on (default 3092)
+     * --mode=threads   One pool thread per connected client (default)
+     * --pool-size=<n>  Size of that pool when --mode=threads (default 10)
+     * --mode=virtual   One virtual thread per connected client (needs Java 21)
+     * --mode=nio       Selector based front end, see NioServer
+     * --reactors=<n>   Number of selector threads when --mode=nio (default 1)
+     * --workers=<n>    Number of math worker threads (default: number of processors)
+     * --cache-bytes=<n> Memory cap of the compiled expression cache (default 16 MB, 0 disables it)
+     * --memo-bytes=<n> Memory cap of the memo of answers (default 8 MB, 0 disables it)
+     * --no-dedup       Evaluate an expression again even while another worker is evaluating it
+     * --max-batch=<n>  Most expressions in one "9," batch (default 100000). A bigger batch is
+     *                  answered "4,Bad request format" and the lines it announced are thrown away
+     * --max-stream-length=<n> Most chars in one streamed "15," expression (default 256 M)
+     * --max-stream-depth=<n> Deepest a streamed expression may nest (default 100000)
+     * --max-queue=<n>  Capacity of each math worker's task queue (default 10000, 0 for no limit)
+     * --max-in-flight=<n> Most tasks of one client queued or being evaluated at once (default 1000,
+     *                  0 for no limit). A batch counts as one task
+     * --max-output-bytes=<n> Most bytes of answers waiting to be written to one client (default
+     *                  1 MB, 0 for no limit). Past that, the server stops reading that client's
+     *                  requests until it has read enough of its answers
+     * --shed=newest    Requests over either limit are answered "11,Server busy" (default)
+     * --shed=client    Only requests over the client's own limit are answered "11,"; a full
+     *                  queue makes the reading thread wait instead
+     * --shed=block     Nothing is rejected; the reading thread waits until there is room. With
+     *                  --mode=nio this stalls every client of that reactor, not just the busy one
+     *
+     * --jit-threshold=<n> Runs after which an expression is turned into bytecode (default 1000, 0
+     *                  never), see BytecodeCompiler
+     * --audit-dir=<dir> Directory of the audit log (default audit-log), see AuditLog and AuditReader
+     * --audit-fsync=interval|batch|never  When the audit log is forced to disk (default interval)
+     * --audit-fsync-ms=<n> Time between forces with --audit-fsync=interval (default 1000)
+     * --audit-segment-mb=<n> Size at which a new audit log segment is started (default 64)
+     * --audit-mmap     Write audit log segments through a memory mapping
+     * --no-audit       Don't keep an audit log
+     *
+     * --handshake-timeout=<s> Seconds a new connection has to send its "0," message (default 10,
+     *                  0 for no limit)
+     * --idle-timeout=<s> Seconds a joined client may send nothing while it has no requests
+     *                  pending before it is disconnected (default 600, 0 for no limit). Clients
+     *                  that want to stay connected while idle send "12," now and then
+     *
+     * --join=<host>:<port> Admin port of a p01Gateway to join as a backend once listening (and to
+     *                  leave again when shutting down)
+     * --advertise-host=<host> Host name the gateway should connect to (default localhost)
+     *
+     * --warmup=<s>     Before opening the port, run expressions through the request path until the
+     *                  JIT compiler has settled, for at most this many seconds (default 0, no
+     *                  warm-up). See WarmUp
+     * --warmup-corpus=<file> Expressions to warm up with, one per line (default: a built-in set)
+     * --warmup-only    Exit after the warm-up instead of opening the port. Used to record a class
+     *                  data sharing archive (make cds) without a client connecting
+     *
+     * The server's metrics are registered with JMX as "p01Server:type=Metrics" (see ServerMetrics).
+     */
     public static void main(String[] args) throws IOException {
+        ServerOptions options = new ServerOptions(args);
+        int port = options.getInt("port", DEFAULT_PORT);
+        gateway = options.getString("join", null);
+        advertised = options.getString("advertise-host", "localhost") + ":" + port;
+        String mode = options.getString("mode", "threads");
 
-        ServerSocket serverSocket = new ServerSocket(PORT); // Open a server socket that listens on the specified port
-        // Log that the server is up and running on specified port
-        System.out.println("System is running on port " + PORT);
+        expressionCache = new ExpressionCache(options.getInt("cache-bytes", 16 * 1024 * 1024));
+        resultMemo = new ResultMemo(expressionCache, options.getInt("memo-bytes", 8 * 1024 * 1024),
+                !options.getFlag("no-dedup"));
+        Evaluator.setTierThreshold(options.getInt("jit-threshold", 1000));
+        int workerCount = Math.max(1, options.getInt("workers", Runtime.getRuntime().availableProcessors()));
+        maxBatch = options.getInt("max-batch", 100000);
+        maxStreamLength = options.getInt("max-stream-length", 256 * 1024 * 1024);
+        maxStreamDepth = options.getInt("max-stream-depth", 100000);
+        maxQueue = options.getInt("max-queue", 10000);
+        maxInFlight = options.getInt("max-in-flight", 1000);
+        maxOutputBytes = options.getInt("max-output-bytes", 1024 * 1024);
+        shedPolicy = options.getString("shed", "newest");
+        if (!SHED_POLICIES.contains(shedPolicy)) {
+            throw new IllegalArgumentException("Unknown --shed " + shedPolicy + " (expected newest, client or block)");
+        }
+        batchPool = new ForkJoinPool(workerCount);
+        if (!options.getFlag("no-audit")) {
+            auditLog = new AuditLog(java.nio.file.Paths.get(options.getString("audit-dir", "audit-log")),
+                    options.getInt("audit-segment-mb", 64) * 1024L * 1024L, options.getString("audit-fsync", "interval"),
+                    options.getInt("audit-fsync-ms", 1000), options.getFlag("audit-mmap"));
+        }
+        metrics = new ServerMetrics(sessions, taskQueues, expressionCache, resultMemo, auditLog);
+        metrics.register();
+        handshakeTimeoutNanos = TimeUnit.SECONDS.toNanos(options.getInt("handshake-timeout", 10));
+        idleTimeoutNanos = TimeUnit.SECONDS.toNanos(options.getInt("idle-timeout", 600));
+        if (handshakeTimeoutNanos > 0 || idleTimeoutNanos > 0) {
+            reaper = new TimerWheel();
+            reaper.start("session-reaper");
+        }
+        for (int i = 0; i < workerCount; i++) {
+            BlockingQueue<MathTask> taskQueue = new LinkedBlockingQueue<>(maxQueue > 0 ? maxQueue : Integer.MAX_VALUE);
+            taskQueues.add(taskQueue);
+            new Thread(new MathWorker(taskQueue), "math-worker-" + i).start();
+        }
+        int warmupSeconds = options.getInt("warmup", 0);
+        if (warmupSeconds > 0) {
+            String corpusFile = options.getString("warmup-corpus", null);
+            String[] corpus = corpusFile != null ? WarmUp.readCorpus(corpusFile) : WarmUp.BUILT_IN_CORPUS;
+            long start = System.nanoTime();
+            long rounds = new WarmUp(corpus).run(warmupSeconds);
+            System.out.println("Warmed up with " + rounds + " rounds of " + corpus.length + " expressions in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        }
+        if (options.getFlag("warmup-only")) {
+            System.exit(0);
+        }
 
-        new Thread(() -> { // Thread for processing math tasks
-            while (true) {
-                try {
-                    MathTask task = taskQueue.take(); // Take a task from the queue
-                    String result = processMathTask(task.expression); // Process the task
-                    task.clientHandler.respond(result); // Send the result back to the client
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt(); // Handle the interruption
-                }
-            }
-        }).start();
+        if (mode.equals("nio")) {
+            new NioServer(options.getInt("reactors", 1)).serve(port);
+            return;
+        } else if (mode.equals("virtual")) {
+            /*
+             * A parked virtual thread only costs a small heap object, so blocking in
+             * readLine() for every connected client is fine here. ClientHandler avoids
+             * blocking inside synchronized code (see respond) so that a slow client never
+             * pins a carrier thread.
+             */
+            pool = Executors.newVirtualThreadPerTaskExecutor();
+        } else if (mode.equals("threads")) {
+            pool = Executors.newFixedThreadPool(options.getInt("pool-size", 10));
+        } else {
+            throw new IllegalArgumentException("Unknown --mode " + mode + " (expected threads, virtual or nio)");
+        }
+
+        ServerSocket serverSocket = new ServerSocket(port); // Open a server socket that listens on the specified port
+        // Log that the server is up and running on specified port
+        System.out.println("System is running on port " + port + " (" + mode + " mode)");
+        listening();
 
         while (true) { // Main server loop for accepting and handling client connections
             try {
                 Socket clientSocket = serverSocket.accept(); // Wait for and accept client connection
+                metrics.connectionAccepted();
                 ClientHandler clientHandler = new ClientHandler(clientSocket); // New client handler created
+                watch(clientHandler);
                 pool.execute(clientHandler); // Send to thread pool for execution
             } catch (IOException e) {
                 System.err.println("Error accepting client connection: " + e.getMessage()); // Log the error message
@@ -43,369 +218,962 @@ public class p01Server {
         }
     }
 
+    /*
+     * Thread for processing math tasks. A worker never writes to a socket: answers are appended to
+     * the connection's ResponseBuffer and the connection's own I/O side writes them (see
+     * Connection.requestWrite). To put several answers into one write, asking for that write is
+     * held back while the same client still has other tasks queued, and done once
+     * - the client has nothing left queued or running, or
+     * - ResponseBuffer.FLUSH_BYTES are waiting, or
+     * - this worker's queue is empty (it is about to wait for work), or
+     * - an answer has been held back for MAX_HOLD_NANOS
+     * so holding back only ever adds a few microseconds to an answer.
+     */
+    static class MathWorker implements Runnable {
+        private static final long MAX_HOLD_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+
+        private BlockingQueue<MathTask> taskQueue;
+        // Connections with answers whose write was held back, and when the first of them was
+        private List<Connection> held = new ArrayList<>();
+        private long heldSince;
+
+        MathWorker(BlockingQueue<MathTask> taskQueue) {
+            this.taskQueue = taskQueue;
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    MathTask task = taskQueue.poll();
+                    if (task == null) {
+                        writeHeld();
+                        task = taskQueue.take(); // Take a task from the queue
+                    }
+                    long takenAt = System.nanoTime();
+                    Connection connection = task.connection;
+                    boolean full;
+                    long evaluatedAt;
+                    if (task.binary) {
+                        byte[] frame = processBinaryTask(task);
+                        evaluatedAt = System.nanoTime();
+                        full = connection.sendLater(frame);
+                    } else {
+                        String result;
+                        if (task.batch != null) {
+                            result = processBatch(task.batch, connection.session);
+                        } else {
+                            // Process the task (a streamed expression was already calculated while it was read)
+                            if (task.answer != null) {
+                                result = task.answer;
+                            } else {
+                                result = task.formula != null ? processFormula(task) : processMathTask(task.expression);
+                            }
+                            if (result.startsWith("4,")) {
+                                metrics.errorAnswered(connection.session, 1);
+                            }
+                            if (auditLog != null) {
+                                auditLog.calculated(connection.clientId, task.expression, result);
+                            }
+                        }
+                        if (task.requestId != null) { // Echo the id of a pipelined request
+                            result = "7," + task.requestId + "," + result;
+                        }
+                        evaluatedAt = System.nanoTime();
+                        full = connection.respondLater(result); // Queue the result for the client
+                    }
+                    connection.taskDone();
+                    long answeredAt = System.nanoTime();
+                    if (full || connection.unanswered.get() == 0) {
+                        connection.requestWrite();
+                    } else {
+                        hold(connection, answeredAt);
+                    }
+                    if (!held.isEmpty() && answeredAt - heldSince >= MAX_HOLD_NANOS) {
+                        writeHeld();
+                    }
+                    metrics.requestAnswered(task.readAt, task.queuedAt, takenAt, evaluatedAt, answeredAt);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt(); // Handle the interruption
+                }
+            }
+        }
+
+        private void hold(Connection connection, long now) {
+            if (held.isEmpty()) {
+                heldSince = now;
+            } else if (held.get(held.size() - 1) == connection) {
+                return; // Usually the same client again, no need to list it twice
+            }
+            held.add(connection);
+        }
+
+        private void writeHeld() {
+            for (Connection connection : held) {
+                connection.requestWrite();
+            }
+            held.clear();
+        }
+    }
+
+    /*
+     * Called once the server accepts connections. Logs how long it took to get here since the JVM
+     * started (class loading, --warmup and opening the port), and whether classes came from a
+     * class data sharing archive, which is what shortens the class loading part (see make cds).
+     *
+     * With --join, puts this server on the gateway's ring, and takes it off again when the JVM
+     * shuts down so new clients stop coming.
+     */
+    static void listening() {
+        boolean archive = ManagementFactory.getRuntimeMXBean().getInputArguments().stream()
+                .anyMatch(argument -> argument.startsWith("-XX:SharedArchiveFile"));
+        System.out.println("Ready " + ManagementFactory.getRuntimeMXBean().getUptime() + " ms after the JVM started"
+                + (archive ? " (classes from a CDS archive)" : ""));
+        if (gateway == null) {
+            return;
+        }
+        System.out.println("Gateway " + gateway + ": " + gatewayCommand("join " + advertised));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> gatewayCommand("leave " + advertised)));
+    }
+
+    // Sends one command to the gateway's admin port and returns its answer
+    private static String gatewayCommand(String command) {
+        int colon = gateway.lastIndexOf(':');
+        try (Socket socket = new Socket(gateway.substring(0, colon), Integer.parseInt(gateway.substring(colon + 1)))) {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out.println(command);
+            return in.readLine();
+        } catch (IOException | RuntimeException e) {
+            return "could not reach it (" + e.getMessage() + ")";
+        }
+    }
+
+    // Starts timing out a new connection (see Connection.deadline)
+    static void watch(Connection connection) {
+        if (reaper != null) {
+            reaper.watch(connection);
+        }
+    }
+
     static class MathTask { // Class for handling math tasks
         String expression;
-        ClientHandler clientHandler;
+        Connection connection;
+        String requestId; // Only set for pipelined ("6,") requests
+        String[] batch; // Only set for "9," batches, in which case expression is null
+        boolean binary; // Set for requests sent with the binary protocol, answered with a frame
+        int binaryRequestId;
+        // Only set for "14," calls of a registered formula, in which case expression is the call
+        CompiledExpression formula;
+        double[] arguments;
+        // Only set for "15," streamed expressions, in which case expression only describes it
+        String answer;
+        // System.nanoTime when the request's bytes were read and when it was put on a task queue
+        long readAt;
+        long queuedAt;
 
-        public MathTask(String expression, ClientHandler clientHandler) { // Constructor for MathTask
+        public MathTask(String expression, Connection connection, String requestId) { // Constructor for MathTask
             this.expression = expression;
-            this.clientHandler = clientHandler;
+            this.connection = connection;
+            this.requestId = requestId;
+        }
+
+        public MathTask(String expression, Connection connection, int binaryRequestId) {
+            this.expression = expression;
+            this.connection = connection;
+            this.binary = true;
+            this.binaryRequestId = binaryRequestId;
+        }
+
+        public MathTask(CompiledExpression formula, double[] arguments, String call, Connection connection) {
+            this.formula = formula;
+            this.arguments = arguments;
+            this.expression = call;
+            this.connection = connection;
+        }
+
+        public MathTask(String[] batch, Connection connection) {
+            this.batch = batch;
+            this.connection = connection;
         }
     }
 
-    static class ClientHandler implements Runnable { // Class for handling client connections
-        private Socket socket;
-        private String clientId;
-        private PrintWriter out;
-        private BufferedReader in;
+    /*
+     * A connected client, no matter which front end accepted it. ClientHandler (blocking socket,
+     * one pool thread per client) and NioServer.NioConnection (selector threads) both extend this
+     * so the math worker and the protocol code below don't care how the client is connected.
+     *
+     * The front ends only move bytes: whatever they read goes to onBytes, which cuts it into lines
+     * (LineDecoder) or, once the client switched to the binary protocol, into frames (see
+     * BinaryCodec) and hands those to handleHandshake, handleRequest and handleFrame.
+     *
+     * Every connection is watched by the reaper (see deadline and expire), which closes it if
+     * it doesn't join within the handshake timeout or, once joined, sends nothing for the idle
+     * timeout while none of its requests are pending.
+     */
+    abstract static class Connection
+            implements LineDecoder.StreamHandler, BinaryCodec.FrameDecoder.FrameHandler, TimerWheel.Timeout {
+        static final String LINE_SEPARATOR = System.lineSeparator();
 
-        public ClientHandler(Socket socket) throws IOException { // Constructor for ClientHandler
-            this.socket = socket;
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        String clientId; // Only set once the client has claimed a name
+        ClientSession session;
+        BlockingQueue<MathTask> taskQueue; // The math worker queue that handles this client
+        boolean pipelining; // Whether the client negotiated the "pipeline" extension
+        // The "9," batch being read: its expressions so far and how many lines are still to come
+        String[] batch;
+        int batchLinesRead;
+        long batchLinesToSkip; // Lines still to come of a batch that was too big, which are thrown away
+        private LineDecoder lineDecoder = new LineDecoder(STREAM_PREFIX.length);
+        StreamingExpression stream; // The "15," expression being read, if any
+        BinaryCodec.FrameDecoder frameDecoder; // Only set once the client negotiated "binary"
+        private volatile boolean joined;
+        volatile boolean closed;
+        // Set when the reaper closed the connection, whose answers are then not waited for
+        volatile boolean reaped;
+        long readAt; // System.nanoTime when the bytes being decoded were read
+        // System.nanoTime when the connection was made and when anything was last read from it
+        final long connectedAt = System.nanoTime();
+        volatile long lastReadAt = connectedAt;
+        // Formulas this client registered with "13,", by name. Only used by the reading thread
+        Map<String, CompiledExpression> formulas;
+        // One permit per task the client may still have in flight, null if there is no limit
+        Semaphore inFlight = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+        // Tasks of this client that are queued or running, see MathWorker
+        AtomicInteger unanswered = new AtomicInteger();
+        // Responses waiting to be written by the I/O side of the connection. The reading side
+        // stops reading while more than maxOutputBytes are waiting (see outputFull)
+        ResponseBuffer output = new ResponseBuffer();
 
-            String initialMessage;
-            // Await a response from the client for an untaken name
-            while (true) {
-                initialMessage = in.readLine();
-                // empty string != closed connection. The client could send only "\n" which
-                // would be read in by readLine as ""
-                if (initialMessage == null) {
-                    throw new IOException("Lost connection with the client");
-                } else if (initialMessage.isEmpty()) {
-                    System.out.println("Connecting client did not send a message");
-                } else if (initialMessage.startsWith("0,")) {
-                    this.clientId = initialMessage.substring(2).trim();
-                    if (sessions.containsKey(clientId)) {
-                        out.println("2,Name already taken");
-                        System.out.println("An unknown client attempted to take the name " + clientId);
-                    } else {
-                        sessions.put(clientId, new ClientSession(clientId, System.currentTimeMillis()));
-                        out.println("0," + clientId + " has joined the session.");
-                        System.out.println("New Client Connected: " + clientId);
-                        break;
-                    }
-                } else {
-                    System.out.println("Client sent an invalid message: " + initialMessage);
+        /*
+         * Has the connection's I/O side write everything in output. Must be safe to call from any
+         * thread and must never block on the socket.
+         */
+        abstract void requestWrite();
+
+        abstract void closeSocket() throws IOException;
+
+        /*
+         * Whether the client has so many answers waiting to be written that nothing more should be
+         * read from it. The in-flight limit only counts requests until they are answered, so
+         * without this a client that pipelines requests and never reads would make the server
+         * keep every answer in memory.
+         */
+        boolean outputFull() {
+            return maxOutputBytes > 0 && output.pendingBytes() > maxOutputBytes;
+        }
+
+        // Sends raw bytes to the client. Safe to call from any thread
+        void send(byte[] bytes) {
+            output.append(bytes);
+            requestWrite();
+        }
+
+        // Sends one protocol line to the client. Safe to call from any thread
+        void respond(String message) {
+            output.append(message, LINE_SEPARATOR);
+            requestWrite();
+        }
+
+        /*
+         * Same as send and respond but only queue the response, the caller has to call
+         * requestWrite at some point. Return true once enough is waiting that it should be soon.
+         */
+        boolean sendLater(byte[] bytes) {
+            return output.append(bytes);
+        }
+
+        boolean respondLater(String message) {
+            return output.append(message, LINE_SEPARATOR);
+        }
+
+        /*
+         * Handles bytes read from the client (called by the thread reading the socket). Returns
+         * false once the connection has been closed.
+         */
+        boolean onBytes(ByteBuffer bytes) {
+            readAt = System.nanoTime();
+            lastReadAt = readAt;
+            if (frameDecoder == null) {
+                lineDecoder.feed(bytes, this);
+            }
+            // The line decoder stops right after the handshake that switched to binary, and
+            // whatever followed it in the same read is already the first frame
+            if (frameDecoder != null && !closed && !frameDecoder.feed(bytes, this)) {
+                closeConnection();
+            }
+            return !closed;
+        }
+
+        // Called once the client has closed its side of the connection
+        void onEndOfStream() {
+            if (frameDecoder == null && lineDecoder.finish(this) && !joined) {
+                System.err.println("Error accepting client connection: Lost connection with the client");
+            }
+            closeConnection();
+        }
+
+        public boolean onLine(String line) {
+            if (!joined) {
+                joined = handleHandshake(this, line);
+                return frameDecoder == null;
+            }
+            return handleRequest(this, line);
+        }
+
+        public boolean onFrame(BinaryCodec.Frame frame) {
+            return handleFrame(this, frame);
+        }
+
+        // Streams "15," lines of a joined client (but not a line of a "9," batch)
+        public boolean startStream(byte[] start, int length) {
+            if (!joined || batch != null || batchLinesToSkip > 0 || !Arrays.equals(start, 0, length, STREAM_PREFIX, 0, STREAM_PREFIX.length)) {
+                return false;
+            }
+            stream = new StreamingExpression(maxStreamLength, maxStreamDepth);
+            return true;
+        }
+
+        public void onStreamBytes(ByteBuffer bytes) {
+            stream.feed(bytes);
+        }
+
+        public boolean onStreamEnd() {
+            return handleStream(this);
+        }
+
+        public long deadline() {
+            if (closed) {
+                return Long.MAX_VALUE;
+            }
+            if (!joined) {
+                if (handshakeTimeoutNanos > 0) {
+                    return connectedAt + handshakeTimeoutNanos;
                 }
+                // No handshake timeout, but it has to stay watched for the idle timeout once it joins
+                return idleTimeoutNanos > 0 ? System.nanoTime() + idleTimeoutNanos : Long.MAX_VALUE;
             }
+            if (idleTimeoutNanos == 0) {
+                return Long.MAX_VALUE;
+            }
+            if (unanswered.get() > 0) { // Waiting on the server isn't being idle
+                return System.nanoTime() + idleTimeoutNanos;
+            }
+            return lastReadAt + idleTimeoutNanos;
         }
 
-        public void run() { // Method for handling client connections
-            try {
-                String inputLine;
-                while ((inputLine = in.readLine()) != null) { // Reads input from the client
-                    if ("1,".equals(inputLine.trim())) { // Checks if the client wants to quit
-                        closeConnection(); // Closes the connection
-                        break;
-                    }
-                    // Handling mathematical expression prefixed with "3,"
-                    if (inputLine.startsWith("3,")) {
-                        // Log the received expression
-                        System.out.println("Received from " + clientId + ": " + inputLine);
-                        String expression = inputLine.substring(2); // Remove prefix
-                        taskQueue.put(new MathTask(expression, this)); // Add the task to the queue
-                    } else {
-                        // Handle unexpected or malformed input
-                        respond("4,Bad request format"); // Send bad equation error response for unexpected messages
-                    }
+        // Called by the reaper thread
+        public void expire() {
+            if (closed) {
+                return;
+            }
+            long now = System.nanoTime();
+            long idleMillis = TimeUnit.NANOSECONDS.toMillis(now - lastReadAt);
+            metrics.sessionReaped(!joined);
+            if (!joined) {
+                long waitedMillis = TimeUnit.NANOSECONDS.toMillis(now - connectedAt);
+                System.out.println("Closed a connection that did not join within " + waitedMillis + "ms");
+            } else {
+                System.out.println("Closed the connection of " + clientId + " after " + idleMillis + "ms without a message");
+                if (auditLog != null) {
+                    auditLog.reaped(clientId, idleMillis);
                 }
-            } catch (IOException | InterruptedException e) { // Handles potential IO exceptions
-                e.printStackTrace();
-            } finally {
-                closeConnection();
             }
+            reaped = true;
+            closeConnection();
         }
 
-        private void closeConnection() { // Method for closing client connections
+        // Called by the math worker once a task of this connection has been answered
+        void taskDone() {
+            unanswered.decrementAndGet();
+            if (inFlight != null) {
+                inFlight.release();
+            }
+        }
+
+        void closeConnection() { // Method for closing client connections
+            closed = true;
             try {
-                ClientSession session = sessions.remove(clientId); // Removes the client session.
-                if (session != null) {
+                if (session != null && sessions.remove(clientId, session)) { // Removes the client session.
                     // Calculate the duration of the session
                     long duration = System.currentTimeMillis() - session.connectionTime;
                     // Logs the session duration
                     System.out.println("Connection with " + clientId + " closed. Duration: " + duration + "ms");
+                    if (auditLog != null) {
+                        auditLog.left(clientId, duration);
+                    }
                 }
-                if (socket != null && !socket.isClosed()) { // Checks if the socket is not closed.
-                    socket.close(); // Closes the socket
-                }
+                closeSocket();
             } catch (IOException e) {
                 e.printStackTrace(); // Handles potential IO exceptions.
+            }
+        }
+    }
 
+    /*
+     * Handles one line sent by a client that has not claimed a name yet. Returns true once the
+     * client has joined, after which its lines go to handleRequest instead.
+     *
+     * A client can ask for protocol extensions by listing them after its name, separated by
+     * ";" (e.g. "0,alice;pipeline"). The server then sends "8,<extensions it accepted>" right
+     * after the usual join message. Clients that don't ask never see the "8," line.
+     */
+    static boolean handleHandshake(Connection connection, String initialMessage) {
+        // empty string != closed connection. The client could send only "\n" which
+        // would be read in by readLine as ""
+        if (initialMessage.isEmpty()) {
+            System.out.println("Connecting client did not send a message");
+        } else if (initialMessage.startsWith("0,")) {
+            String[] nameAndExtensions = initialMessage.substring(2).split(";", -1);
+            String clientId = nameAndExtensions[0].trim();
+            // Claimed in one step, so two clients joining with the same name at once can't both get it
+            ClientSession session = new ClientSession(clientId, System.currentTimeMillis());
+            if (sessions.putIfAbsent(clientId, session) != null) {
+                connection.respond("2,Name already taken");
+                System.out.println("An unknown client attempted to take the name " + clientId);
+            } else {
+                connection.clientId = clientId;
+                connection.taskQueue = taskQueues.get(Math.floorMod(nextWorker.getAndIncrement(), taskQueues.size()));
+                connection.session = session;
+                if (connection.closed) { // The reaper closed the connection while it was joining
+                    sessions.remove(clientId, session);
+                    return false;
+                }
+                connection.respond("0," + clientId + " has joined the session.");
+                if (nameAndExtensions.length > 1) {
+                    List<String> accepted = new ArrayList<>();
+                    for (int i = 1; i < nameAndExtensions.length; i++) {
+                        String extension = nameAndExtensions[i].trim();
+                        if (SUPPORTED_EXTENSIONS.contains(extension) && !accepted.contains(extension)) {
+                            accepted.add(extension);
+                        }
+                    }
+                    connection.pipelining = accepted.contains("pipeline");
+                    connection.respond("8," + String.join(";", accepted));
+                    if (accepted.contains("binary")) {
+                        // Everything after this line is binary frames (see BinaryCodec)
+                        connection.frameDecoder = new BinaryCodec.FrameDecoder();
+                    }
+                }
+                System.out.println("New Client Connected: " + clientId);
+                if (auditLog != null) {
+                    auditLog.joined(clientId);
+                }
+                return true;
             }
+        } else {
+            System.out.println("Client sent an invalid message: " + initialMessage);
         }
+        return false;
+    }
 
-        public void respond(String message) { // Method for responding to client requests
-            out.println(message);
-            out.flush();
+    /*
+     * Handles one line sent by a client that has joined. Returns false once the client has quit
+     * (the connection is already closed by then).
+     *
+     * Clients that negotiated "pipeline" can also send "6,<id>,<expression>", where id is any
+     * text without a comma picked by the client. The answer is "7,<id>,<usual response>" (e.g.
+     * "7,12,5,4"). These requests are spread over all math workers and answered as soon as they
+     * are done, so a client can have many in flight and must match answers up by id.
+     *
+     * "9,<n>" starts a batch: the next n lines are expressions (without any prefix). The whole
+     * batch is evaluated as one task, in order with the client's "3," requests, and answered
+     * with "9,<n>" followed by one "5,..." or "4,Error: ..." line per expression. A batch of more
+     * than --max-batch expressions is answered "4,Bad request format" once, and the n lines after
+     * it are read and thrown away, so none of them runs as a request of its own.
+     *
+     * "13,<name>(<parameters>)=<expression>" registers a formula and "14,<name>,<arguments>"
+     * evaluates it, see handleRegister and handleCall.
+     *
+     * "10," asks for the server's metrics (see ServerMetrics.statsLine). It is answered right away
+     * by the thread reading the connection, so it can overtake answers still on the task queue.
+     *
+     * "12," is a heartbeat: it does nothing but keep an idle client from being disconnected (see
+     * --idle-timeout) and is answered "12," right away, so a client can also use it to check the
+     * connection is still alive.
+     */
+    static boolean handleRequest(Connection connection, String inputLine) {
+        if (connection.batchLinesToSkip > 0) { // A line of a batch that was rejected
+            connection.batchLinesToSkip--;
+            return true;
+        }
+        if (connection.batch != null) { // Every line of a batch is an expression
+            connection.batch[connection.batchLinesRead++] = inputLine;
+            if (connection.batchLinesRead < connection.batch.length) {
+                return true;
+            }
+            MathTask task = new MathTask(connection.batch, connection);
+            connection.batch = null;
+            return submit(connection, connection.taskQueue, task);
+        }
+        if ("1,".equals(inputLine.trim())) { // Checks if the client wants to quit
+            connection.closeConnection(); // Closes the connection
+            return false;
+        }
+        // Handling mathematical expression prefixed with "3,"
+        if (inputLine.startsWith("3,")) {
+            String expression = inputLine.substring(2); // Remove prefix
+            return submit(connection, connection.taskQueue, new MathTask(expression, connection, null));
+        } else if (inputLine.startsWith("6,") && connection.pipelining) {
+            int idEnd = inputLine.indexOf(',', 2);
+            if (idEnd > 2 && idEnd - 2 <= MAX_REQUEST_ID_LENGTH) {
+                String requestId = inputLine.substring(2, idEnd);
+                String expression = inputLine.substring(idEnd + 1);
+                BlockingQueue<MathTask> taskQueue = taskQueues.get(Math.floorMod(nextWorker.getAndIncrement(), taskQueues.size()));
+                return submit(connection, taskQueue, new MathTask(expression, connection, requestId));
+            }
+        } else if (inputLine.startsWith("13,")) {
+            connection.respond(handleRegister(connection, inputLine.substring(3)));
+            return true;
+        } else if (inputLine.startsWith("14,")) {
+            return handleCall(connection, inputLine.substring(3));
+        } else if (inputLine.trim().equals("10,")) {
+            connection.respond(metrics.statsLine(connection.session));
+            return true;
+        } else if (inputLine.trim().equals("12,")) {
+            connection.respond("12,");
+            return true;
+        } else if (inputLine.startsWith("9,")) {
+            long count;
+            try {
+                count = Long.parseLong(inputLine.substring(2).trim());
+            } catch (NumberFormatException e) {
+                count = -1;
+            }
+            if (count == 0) {
+                connection.respond("9,0");
+                return true;
+            } else if (count > 0 && count <= maxBatch) {
+                connection.batch = new String[(int) count];
+                connection.batchLinesRead = 0;
+                return true;
+            } else if (count > maxBatch) {
+                connection.batchLinesToSkip = count;
+            }
         }
+        // Handle unexpected or malformed input
+        metrics.errorAnswered(connection.session, 1);
+        connection.respond("4,Bad request format"); // Send bad equation error response for unexpected messages
+        return true;
     }
 
-    static class ClientSession {
-        String clientId; // The client's unique identifier.
-        long connectionTime; // The time at which the client connected.
+    /*
+     * Answers a "15," expression once its line has ended. It was calculated while it was read
+     * (see StreamingExpression), but the answer still goes through the connection's math worker
+     * so that it comes after the answers to the client's earlier requests.
+     */
+    static boolean handleStream(Connection connection) {
+        StreamingExpression stream = connection.stream;
+        connection.stream = null;
+        MathTask task = new MathTask(stream.describe(), connection, null);
+        task.answer = stream.finish();
+        return submit(connection, connection.taskQueue, task);
+    }
 
-    public ClientSession(String clientId, long connectionTime) {
-        this.clientId = clientId; // Initializes the client ID.
-        this.connectionTime = connectionTime; // Initializes the connection time.
-        System.out.println("Client " + clientId + " connected at " + new Date(connectionTime).toString()); // Logs the client connection.
+    /*
+     * Registers a formula: a named expression whose parameters are filled in by each call, so
+     * the lexer and the Shunting-Yard algorithm only run once for it. For example
+     *   13,hyp(a,b)=(a^2+b^2)^0.5     and then     14,hyp,3,4     is answered 5,5
+     * The formula belongs to the client that registered it. "13,global,<name>(...)=..." registers
+     * it for every client instead; a client's own formula of the same name hides a global one.
+     * Registering a name again replaces the formula.
+     *
+     * The answer is "13,<name>", or a "4,Error: ... at char N" where N counts from the first
+     * character after "13,". It is sent right away (like "10,").
+     */
+    static String handleRegister(Connection connection, String definition) {
+        boolean global = definition.startsWith("global,");
+        int nameStart = global ? "global,".length() : 0;
+        int open = definition.indexOf('(', nameStart);
+        int close = open < 0 ? -1 : definition.indexOf(')', open);
+        int equals = close < 0 ? -1 : definition.indexOf('=', close);
+        if (equals < 0) {
+            return EquationErrorHandler.createErrMsg(EquationErrorHandler.BAD_FORMULA, 0, ' ');
+        }
+        String name = definition.substring(nameStart, open).trim();
+        if (!isName(name)) {
+            return EquationErrorHandler.createErrMsg(EquationErrorHandler.BAD_FORMULA, nameStart + 1, ' ');
+        }
+        String parameterList = definition.substring(open + 1, close).trim();
+        String[] parameters = parameterList.isEmpty() ? new String[0] : parameterList.split(",", -1);
+        if (parameters.length > MAX_PARAMETERS) {
+            return EquationErrorHandler.createErrMsg(EquationErrorHandler.BAD_FORMULA, open + 1, ' ');
         }
+        for (int i = 0; i < parameters.length; i++) {
+            parameters[i] = parameters[i].trim();
+            if (!isName(parameters[i]) || Arrays.asList(parameters).subList(0, i).contains(parameters[i])) {
+                return EquationErrorHandler.createErrMsg(EquationErrorHandler.BAD_FORMULA, open + 1, ' ');
+            }
+        }
+        CompiledExpression formula = CompiledExpression.compileFormula(definition.substring(equals + 1), parameters);
+        if (formula.errorCode != EquationErrorHandler.OK) {
+            // Point at the character within the whole definition, not just the expression
+            int location = formula.errorLoc == 0 ? 0 : formula.errorLoc + equals + 1;
+            return EquationErrorHandler.createErrMsg(formula.errorCode, location, formula.errorChar);
+        }
+        if (global) {
+            if (globalFormulas.size() >= MAX_GLOBAL_FORMULAS && !globalFormulas.containsKey(name)) {
+                return "11,Server busy";
+            }
+            globalFormulas.put(name, formula);
+        } else {
+            if (connection.formulas == null) {
+                connection.formulas = new HashMap<>();
+            }
+            if (connection.formulas.size() >= MAX_SESSION_FORMULAS && !connection.formulas.containsKey(name)) {
+                return "11,Server busy";
+            }
+            connection.formulas.put(name, formula);
+        }
+        return "13," + name;
     }
 
     /*
-     * This function will process the math expressions provided by the clients. This
-     * is thread-safe as it only uses local variables.
-     * 
-     * The algorithm itself is based upon the Shunting-Yard algorithm, but instead
-     * of converting the expression into a post-fix expression
-     * the algorithm directly calculates the value of the expression as well. This
-     * is to catch some invalid expressions early (e.g., 2 +/ 2) and to make the
-     * calculations faster.
-     * 
-     * This also features the use of a hand-written thread-safe Lexer to help get
-     * the next character in the expression (e.g., the next number or operator)
+     * Handles "14,<name>,<argument>,...". The arguments are plain numbers (an optional sign,
+     * digits and at most one decimal point), one per parameter. The call is evaluated like a "3,"
+     * request and answered with "5,<num>" or "4,Error: ...". Errors in the call itself are answered
+     * right away, with N in "at char N" counting from the first character after "14,".
      */
-    private static String processMathTask(String expression) {
-        /*
-         * It doesn't make sense to handle empty expressions, so we'll return an error
-         * because of it.
-         */
-        if (expression.isEmpty()) {
-            return EquationErrorHandler.createErrMsg("Expression is empty", 0);
+    static boolean handleCall(Connection connection, String call) {
+        String[] parts = call.split(",", -1);
+        String name = parts[0].trim();
+        CompiledExpression formula = connection.formulas != null ? connection.formulas.get(name) : null;
+        if (formula == null) {
+            formula = globalFormulas.get(name);
         }
-        EquationLexer lexer = new EquationLexer(expression);
-        /*
-         * This stack contains EquationOp objects. An EquationOp object holds an
-         * operator and the location of the operator within the math expression.
-         * EquationOp was specifically made to help show better error messages if one
-         * occurs because it stores the location of the associated operator.
-         */
-        Deque<EquationOp> opStack = new ArrayDeque<EquationOp>();
-        /*
-         * We create a stack holding Double values because a double can hold all 32-bit
-         * integer values, and it would be easier to manage than having two stacks (one
-         * for int values and the other for double values). BigDecimal isn't used
-         * because most math expressions shouldn't exceed the 32-bit signed integer
-         * range.
-         */
-        Deque<Double> numStack = new ArrayDeque<Double>();
-        /*
-         * The response variable is supposed to hold the response error message from a
-         * called function.
-         * If there is no response (an empty string), then the function went without
-         * errors.
-         * Otherwise, an error occurred and the response string holds the error message.
-         * 
-         * findLParen, popOpStack, and performOp follow this same format as they return
-         * error responses.
-         * These responses are already formatted with the expected protocol to send to
-         * the client, so the calling code does not need any more logic to determine
-         * which message to send.
-         * In other words, all code to determine which message to send "5,<num>" or
-         * "4,Error: ..." is done here
-         */
-        String response;
-
-        /*
-         * These Tokens and their associated uses are defined in EquationLexer.java
-         */
-
-        // Loop through the entire expression until we reach the end
-        while (lexer.PeekTok() != EquationLexer.Token.TOK_EOF) {
-            switch (lexer.PeekTok()) {
-                case TOK_ERR:
-                    return lexer.GetError();
-                case TOK_NUMBER:
-                    numStack.push(Double.parseDouble(lexer.PeekNum()));
-                    break;
-                case TOK_LPAREN:
-                    opStack.push(new EquationOp(lexer.GetEqLoc(), EquationLexer.Token.TOK_LPAREN));
-                    break;
-                case TOK_RPAREN:
-                    response = findLParen(numStack, opStack, expression, lexer.GetEqLoc());
-                    if (!response.isEmpty())
-                        return response;
-                    break;
-                case TOK_ADD:
-                case TOK_SUB:
-                case TOK_MUL:
-                case TOK_DIV:
-                case TOK_EXP:
-                case TOK_MOD:
-                case TOK_NEGATIVE:
-                case TOK_POSITIVE:
-                    response = popOpStack(numStack, opStack, lexer.PeekTok(), expression);
-                    if (!response.isEmpty())
-                        return response;
-                    opStack.push(new EquationOp(lexer.GetEqLoc(), lexer.PeekTok()));
-                case TOK_EOF:
-                    break;
-            }
-            lexer.GetNextTok(); // Get the next token
-        }
-        // Creating an external EquationOp to not instantiate a new EquationOp each loop
-        // through the opStack
-        EquationOp operator;
-        while (!opStack.isEmpty()) {
-            operator = opStack.pop();
-            if (operator.op == EquationLexer.Token.TOK_LPAREN) {
-                return EquationErrorHandler.createErrMsg("Unfinished (", operator.location);
-            }
-            response = performOp(numStack, operator, expression);
-            if (!response.isEmpty()) {
-                return response;
-            }
-        }
-        // If there is more than one number in the numStack, then there were not enough
-        // operators to perform operations
-        if (numStack.size() != 1) {
-            return EquationErrorHandler.createErrMsg("Unfinished expression", 0);
-        }
-        Double val = numStack.pop();
-        if (val % 1 == 0) { // Check if the number is an integer
-            return "5," + String.valueOf(val.intValue()); // Return the integer value
-        }
-        return "5," + val.toString(); // Return the double value
+        if (formula == null) {
+            metrics.errorAnswered(connection.session, 1);
+            connection.respond(EquationErrorHandler.createErrMsg(EquationErrorHandler.UNKNOWN_NAME, 1, ' '));
+            return true;
+        }
+        if (parts.length - 1 != formula.getParameterCount()) {
+            metrics.errorAnswered(connection.session, 1);
+            connection.respond(EquationErrorHandler.createErrMsg(EquationErrorHandler.WRONG_ARGUMENT_COUNT, 0, ' '));
+            return true;
+        }
+        double[] arguments = new double[parts.length - 1];
+        int location = parts[0].length() + 2; // Where the first argument starts
+        for (int i = 0; i < arguments.length; i++) {
+            String argument = parts[i + 1].trim();
+            if (!isPlainNumber(argument)) {
+                metrics.errorAnswered(connection.session, 1);
+                connection.respond(EquationErrorHandler.createErrMsg(EquationErrorHandler.BAD_ARGUMENT, location, ' '));
+                return true;
+            }
+            arguments[i] = Double.parseDouble(argument);
+            location += parts[i + 1].length() + 1;
+        }
+        return submit(connection, connection.taskQueue, new MathTask(formula, arguments, call, connection));
     }
 
-    // This method is only used when a ")" is found due to the Shunting-Yard
-    // algorithm
-    private static String findLParen(Deque<Double> numStack, Deque<EquationOp> opStack, String expression,
-            int rparenLoc) {
-        while (!opStack.isEmpty() && opStack.peek().op != EquationLexer.Token.TOK_LPAREN) {
-            String response = performOp(numStack, opStack.pop(), expression);
-            if (!response.isEmpty()) {
-                return response;
-            }
+    private static boolean isName(String text) {
+        if (text.isEmpty() || !EquationLexer.IsLetter(text.charAt(0))) {
+            return false;
         }
-        if (opStack.isEmpty()) {
-            return EquationErrorHandler.createErrMsg("Unfinished )", rparenLoc);
+        for (int i = 1; i < text.length(); i++) {
+            if (!EquationLexer.IsIdentifierChar(text.charAt(i))) {
+                return false;
+            }
         }
-        // If the opStack isn't empty, then the loop stopped when a "(" was found.
-        // Therefore, we can just pop it without checking
-        opStack.pop();
-        return "";
+        return true;
     }
 
-    // Perform all operations with equal or greater precedence than the given
-    // operator on the values within the numStack
-    private static String popOpStack(Deque<Double> numStack, Deque<EquationOp> opStack, EquationLexer.Token op,
-            String expression) {
-        while (!opStack.isEmpty() && getOpPrecedence(opStack.peek().op) >= getOpPrecedence(op)) {
-            String response = performOp(numStack, opStack.pop(), expression);
-            if (!response.isEmpty()) {
-                return response;
+    // An optional sign, digits and at most one decimal point, with at least one digit
+    private static boolean isPlainNumber(String text) {
+        int start = !text.isEmpty() && (text.charAt(0) == '-' || text.charAt(0) == '+') ? 1 : 0;
+        boolean digit = false;
+        boolean point = false;
+        for (int i = start; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                digit = true;
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                return false;
             }
         }
-        return "";
+        return digit;
     }
 
-    // Perform a specific operation specified by the operator parameter
-    private static String performOp(Deque<Double> numStack, EquationOp operator, String expression) {
-        double lhs, rhs; // Variables for the left and right hand side of the equation
-        /*
-         * We check each operator that is given and see if it has enough operands to
-         * operate on (or if the operands are valid for particular operations).
-         * After both are validated, we then perform the operation and push it onto the
-         * numStack
-         */
-        switch (operator.op) { // Switch statement for the operator
-            case TOK_ADD: // Case for addition
-                if (numStack.size() < 2) {
-                    // Return error message if there are not enough operands
-                    return EquationErrorHandler.createErrMsg("Expected two operands", operator.location);
-                }
-                rhs = numStack.pop();
-                lhs = numStack.pop();
-                numStack.push(lhs + rhs); // Push the result onto the stack
-                break;
-            case TOK_SUB: // Case for subtraction
-                if (numStack.size() < 2) { // Check if there are enough operands
-                    return EquationErrorHandler.createErrMsg("Expected two operands", operator.location);
-                }
-                rhs = numStack.pop();
-                lhs = numStack.pop();
-                numStack.push(lhs - rhs); // Push the result onto the stack
-                break;
-            case TOK_DIV: // Case for division
-                if (numStack.size() < 2) { // Check if there are enough operands
-                    return EquationErrorHandler.createErrMsg("Expected two operands", operator.location);
+    /*
+     * Handles one frame sent by a client that switched to the binary protocol. Returns false
+     * once the client has quit. Like pipelined requests, frames are spread over all math workers.
+     */
+    static boolean handleFrame(Connection connection, BinaryCodec.Frame frame) {
+        if (frame.opcode == BinaryCodec.QUIT) {
+            connection.closeConnection();
+            return false;
+        } else if (frame.opcode == BinaryCodec.EVAL) {
+            String expression = new String(frame.payload, StandardCharsets.UTF_8);
+            BlockingQueue<MathTask> taskQueue = taskQueues.get(Math.floorMod(nextWorker.getAndIncrement(), taskQueues.size()));
+            return submit(connection, taskQueue, new MathTask(expression, connection, frame.requestId));
+        }
+        metrics.errorAnswered(connection.session, 1);
+        connection.send(BinaryCodec.encodeError(frame.requestId, BinaryCodec.BAD_REQUEST, 0));
+        return true;
+    }
+
+    /*
+     * Puts a task on a math worker's queue, unless the queue is full or the client already has
+     * maxInFlight tasks queued or running. What happens then depends on --shed: the request is
+     * answered "11,Server busy" ("7,<id>,11,Server busy" for pipelined requests, a SERVER_BUSY
+     * error frame for binary ones) or the calling thread waits until there is room. A busy answer
+     * is sent right away, so it can arrive before answers to the client's earlier requests.
+     */
+    private static boolean submit(Connection connection, BlockingQueue<MathTask> taskQueue, MathTask task) {
+        metrics.requestReceived(connection.session, task.batch != null ? task.batch.length : 1);
+        task.readAt = connection.readAt;
+        try {
+            if (connection.inFlight != null) {
+                if (shedPolicy.equals("block")) {
+                    connection.inFlight.acquire();
+                } else if (!connection.inFlight.tryAcquire()) {
+                    metrics.requestShed(connection.session, false);
+                    respondBusy(connection, task);
+                    return true;
                 }
-                rhs = numStack.pop();
-                lhs = numStack.pop();
-                if (rhs == 0) { // Check if the divisor is zero
-                    return EquationErrorHandler.createErrMsg("Cannot divide by zero", operator.location);
+            }
+            task.queuedAt = System.nanoTime();
+            connection.unanswered.incrementAndGet();
+            if (shedPolicy.equals("newest")) {
+                if (!taskQueue.offer(task)) {
+                    connection.taskDone();
+                    metrics.requestShed(connection.session, true);
+                    respondBusy(connection, task);
                 }
-                numStack.push(lhs / rhs); // Push the result onto the stack
-                break;
-            case TOK_MUL:
-                if (numStack.size() < 2) { // Check if there are enough operands
-                    return EquationErrorHandler.createErrMsg("Expected two operands", operator.location);
+            } else {
+                taskQueue.put(task); // Add the task to the queue, waiting for room
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            connection.closeConnection();
+            return false;
+        }
+    }
+
+    private static void respondBusy(Connection connection, MathTask task) {
+        if (task.binary) {
+            connection.send(BinaryCodec.encodeError(task.binaryRequestId, BinaryCodec.SERVER_BUSY, 0));
+        } else if (task.requestId != null) {
+            connection.respond("7," + task.requestId + ",11,Server busy");
+        } else {
+            connection.respond("11,Server busy");
+        }
+    }
+
+    /*
+     * The same class is used for the fixed thread pool and for virtual threads. With virtual
+     * threads, blocking while holding a monitor (synchronized) pins the carrier thread, so:
+     * - responses are written under a ReentrantLock instead of through a PrintWriter, whose
+     *   println/flush block on the socket while holding the writer's monitor
+     * - the handshake runs in run() rather than in the constructor, so the accepting thread
+     *   never waits on a client that is slow to send its name
+     * The socket streams use j.u.c locks internally on Java 21, so reading does not pin.
+     *
+     * Responses are written by a virtual thread of the connection's own (writeLoop), which sleeps
+     * until requestWrite wakes it and then writes everything in output at once. A client that
+     * reads slowly only ever blocks its own writer, never a math worker.
+     */
+    static class ClientHandler extends Connection implements Runnable { // Class for handling client connections
+        private static final long CLOSE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+        private static final long OUTPUT_POLL_MILLIS = 100;
+        private Socket socket;
+        private OutputStream out;
+        private ReentrantLock writeLock = new ReentrantLock();
+        private InputStream in;
+        private Thread writer;
+        private volatile boolean writerParked;
+
+        public ClientHandler(Socket socket) throws IOException { // Constructor for ClientHandler
+            this.socket = socket;
+            out = socket.getOutputStream();
+            in = socket.getInputStream();
+        }
+
+        public void run() { // Method for handling client connections
+            writer = Thread.ofVirtual().name("writer-" + socket.getPort()).start(this::writeLoop);
+            byte[] buffer = new byte[8192];
+            try {
+                int read;
+                while (awaitOutputRoom() && (read = in.read(buffer)) >= 0) { // Reads input from the client
+                    if (!onBytes(ByteBuffer.wrap(buffer, 0, read))) {
+                        return;
+                    }
                 }
-                rhs = numStack.pop();
-                lhs = numStack.pop();
-                numStack.push(lhs * rhs); // Push the result onto the stack
-                break;
-            case TOK_MOD: // Case for modulo
-                if (numStack.size() < 2) {
-                    return EquationErrorHandler.createErrMsg("Expected two operands", operator.location);
+                if (!closed) {
+                    onEndOfStream();
                 }
-                rhs = numStack.pop();
-                lhs = numStack.pop();
-                if (rhs == 0) { // Check if the divisor is zero
-                    return EquationErrorHandler.createErrMsg("Cannot modulo by zero", operator.location);
+            } catch (IOException e) { // Handles potential IO exceptions
+                if (!closed) {
+                    e.printStackTrace();
                 }
-                numStack.push(lhs % rhs); // Push the result onto the stack
-                break;
-            case TOK_EXP: // Case for exponentiation
-                if (numStack.size() < 2) {
-                    return EquationErrorHandler.createErrMsg("Expected two operands", operator.location);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closeConnection();
+            }
+        }
+
+        // Waits while outputFull (see Connection.outputFull). Returns false if the connection closed meanwhile
+        private boolean awaitOutputRoom() throws InterruptedException {
+            while (!closed && maxOutputBytes > 0 && !output.awaitRoom(maxOutputBytes, OUTPUT_POLL_MILLIS)) {
+                // Checked again every 100ms in case the connection was closed
+            }
+            return !closed;
+        }
+
+        void requestWrite() {
+            if (writerParked) {
+                LockSupport.unpark(writer);
+            }
+        }
+
+        private void writeLoop() {
+            while (!closed) {
+                writeOutput();
+                writerParked = true;
+                // Checked again after writerParked is set, so a requestWrite in between isn't missed
+                if (output.isEmpty() && !closed) {
+                    LockSupport.park(this);
                 }
-                rhs = numStack.pop();
-                lhs = numStack.pop();
-                numStack.push(Math.pow(lhs, rhs)); // Push the result onto the stack
-                break;
-            case TOK_POSITIVE: // Case for positive
-                if (numStack.isEmpty()) {
-                    return EquationErrorHandler.createErrMsg("Expected an operand", operator.location);
+                writerParked = false;
+            }
+        }
+
+        // Writes everything in output. Runs on the writer, and on the reading thread when closing
+        private void writeOutput() {
+            writeLock.lock();
+            try {
+                ByteBuffer bytes;
+                while ((bytes = output.take()) != null) {
+                    out.write(bytes.array(), 0, bytes.limit());
+                    out.flush();
+                    output.release(bytes);
                 }
-                numStack.push(Math.abs(numStack.pop())); // Push the result onto the stack
-                break;
-            case TOK_NEGATIVE: // Case for negative
-                if (numStack.isEmpty()) {
-                    return EquationErrorHandler.createErrMsg("Expected an operand", operator.location);
+            } catch (IOException e) {
+                // Like the PrintWriter this replaced, a failed write is not fatal here. The
+                // reading side notices the broken connection and closes it
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        void closeSocket() throws IOException {
+            if (socket != null && !socket.isClosed()) { // Checks if the socket is not closed.
+                if (!reaped) { // A reaped client may not be reading, so writing could block the reaper
+                    // Answers to everything the client sent before closing still go out, including
+                    // the ones a math worker is still on (workers never wait for this thread)
+                    while (unanswered.get() > 0) {
+                        LockSupport.parkNanos(CLOSE_POLL_NANOS);
+                    }
+                    writeOutput();
                 }
-                numStack.push(-1 * numStack.pop()); // Push the result onto the stack
-                break;
-            default:
-                break;
+                socket.close(); // Closes the socket
+            }
+            if (writer != null) {
+                LockSupport.unpark(writer);
+            }
         }
-        return "";
     }
 
-    // This stores the operator precedence of the operators within the math
-    // expressions
-    private static int getOpPrecedence(EquationLexer.Token op) {
-        /*
-         * The Tokens and their associated meanings are explained within
-         * EquationLexer.java
-         */
-        switch (op) {
-            case TOK_ADD:
-            case TOK_SUB:
-                return 1;
-            case TOK_MUL:
-            case TOK_DIV:
-            case TOK_MOD:
-                return 2;
-            case TOK_EXP:
-                return 3;
-            case TOK_NEGATIVE:
-            case TOK_POSITIVE:
-                return 4;
-            case TOK_LPAREN:
-            default:
-                return 0;
+    static class ClientSession {
+        String clientId; // The client's unique identifier.
+        long connectionTime; // The time at which the client connected.
+        LongAdder requests = new LongAdder(); // Expressions the client sent (see ServerMetrics)
+        LongAdder errors = new LongAdder(); // Answers to the client that were errors
+        LongAdder shed = new LongAdder(); // Requests of the client answered "11,Server busy"
+
+    public ClientSession(String clientId, long connectionTime) {
+        this.clientId = clientId; // Initializes the client ID.
+        this.connectionTime = connectionTime; // Initializes the connection time.
+        }
+    }
+
+    /*
+     * This function will process the math expressions provided by the clients. The expression
+     * is compiled once (see CompiledExpression) and kept in expressionCache, so repeated
+     * expressions skip the lexer and the Shunting-Yard algorithm, and answers to expressions
+     * that are sent again and again come straight out of resultMemo. This is thread-safe as the
+     * cache, the memo and compiled expressions are.
+     */
+    private static String processMathTask(String expression) {
+        return resultMemo.get(expression).response;
+    }
+
+    // Evaluates a "14," call of a registered formula
+    private static String processFormula(MathTask task) {
+        Evaluator evaluator = Evaluator.forCurrentThread();
+        return evaluator.response(task.formula, evaluator.run(task.formula, task.arguments));
+    }
+
+    // Evaluates a binary protocol request and encodes the answer frame
+    private static byte[] processBinaryTask(MathTask task) {
+        ResultMemo.Outcome outcome = resultMemo.get(task.expression);
+        if (auditLog != null) {
+            auditLog.calculated(task.connection.clientId, task.expression, outcome.status, outcome.errorLoc,
+                    outcome.value);
+        }
+        if (outcome.status != EquationErrorHandler.OK) {
+            metrics.errorAnswered(task.connection.session, 1);
+            return BinaryCodec.encodeError(task.binaryRequestId, outcome.status, outcome.errorLoc);
+        }
+        return BinaryCodec.encodeResult(task.binaryRequestId, outcome.value);
+    }
+
+    /*
+     * Builds the response to a "9," batch. Small batches are evaluated by the calling math
+     * worker alone, large ones are cut into slices that batchPool evaluates in parallel.
+     */
+    private static String processBatch(String[] expressions, ClientSession session) {
+        String[] results = new String[expressions.length];
+        if (expressions.length < BATCH_SPLIT_SIZE) {
+            for (int i = 0; i < expressions.length; i++) {
+                results[i] = processMathTask(expressions[i]);
+            }
+        } else {
+            batchPool.invoke(new BatchSlice(expressions, results, 0, expressions.length));
+        }
+        StringBuilder response = new StringBuilder("9,").append(expressions.length);
+        int errors = 0;
+        for (int i = 0; i < results.length; i++) {
+            response.append(System.lineSeparator()).append(results[i]);
+            if (results[i].startsWith("4,")) {
+                errors++;
+            }
+            if (auditLog != null) {
+                auditLog.calculated(session.clientId, expressions[i], results[i]);
+            }
+        }
+        if (errors > 0) {
+            metrics.errorAnswered(session, errors);
+        }
+        return response.toString();
+    }
+
+    static class BatchSlice extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private String[] expressions;
+        private String[] results;
+        private int start;
+        private int end;
+
+        BatchSlice(String[] expressions, String[] results, int start, int end) {
+            this.expressions = expressions;
+            this.results = results;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected void compute() {
+            if (end - start < BATCH_SPLIT_SIZE) {
+                for (int i = start; i < end; i++) {
+                    results[i] = processMathTask(expressions[i]);
+                }
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            invokeAll(new BatchSlice(expressions, results, start, middle),
+                    new BatchSlice(expressions, results, middle, end));
         }
     }
 }